@@ -7,6 +7,10 @@ import java.io.*;
  * A simple decryption example for BlackBerry.  This class takes
  * an int and uses a hard-coded DES key to encode it, for use
  * as a license.
+ *
+ * The licenses are checked with a LicenseCodec, which decrypts
+ * the single block into a reused buffer; the RIM crypto classes
+ * are only used by the encryption example at the end.
  * 
  * @author Carol Hamer
  */
@@ -44,6 +48,18 @@ public class DesPinEncryptor {
    * The object holding the DES key data.
    */
   private DESKey myKey;
+
+  /**
+   * Decrypts the licenses with the same key, without any
+   * RIM crypto objects.
+   */
+  private LicenseCodec myCodec;
+
+  /**
+   * Space for the encrypted and decrypted license block,
+   * reused for every check.
+   */
+  private byte[] myWork = new byte[LicenseCodec.WORK_SIZE];
   
 //----------------------------------------------------------------
 //  initialization and accessors
@@ -63,6 +79,7 @@ public class DesPinEncryptor {
    */
   private DesPinEncryptor() {
     myKey = new DESKey(myKeyData);
+    myCodec = new LicenseCodec(myKeyData);
   }
   
 //----------------------------------------------------------------
@@ -85,29 +102,11 @@ public class DesPinEncryptor {
    * the DES key.
    */
   public byte[] licenseStringToBytes(String license) {
-    byte[] retVal = null;
-    try {
-      // First split the string into two strings, 
-      // each corresponding to one int:
-      int index = license.indexOf(LICENSE_SEPARATOR);
-      String sval1 = license.substring(0, index);
-      int val1 = Integer.parseInt(sval1);
-      //AccessControl.setMessage("val1: " + val1);
-      String sval2 = license.substring(index + 1, license.length());
-      int val2 = Integer.parseInt(sval2);
-      //AccessControl.setMessage("val2: " + val2);
-      // Convert the two ints to an array of eight bytes
-      // using output streams:
-      ByteArrayOutputStream baos = new ByteArrayOutputStream(8);
-      DataOutputStream dos = new DataOutputStream(baos);
-      dos.writeInt(val1);
-      dos.writeInt(val2);
-      baos.close();
-      dos.close();
-      retVal = baos.toByteArray();
-      //AccessControl.setMessage("licenseBytes.length: " + retVal.length);
-    } catch(Exception e) {
-      AccessControl.postException(e);
+    byte[] retVal = new byte[LicenseCodec.BLOCK_SIZE];
+    if(!LicenseCodec.parseLicense(license, retVal, 0)) {
+      AccessControl.postException(
+          new IllegalArgumentException("bad license: " + license));
+      retVal = null;
     }
     return retVal;
   }
@@ -116,53 +115,19 @@ public class DesPinEncryptor {
    * Takes a human-readable string and decrypts it with the
    * DES key to determine whether it corresponds to the given PIN.
    */
-  public boolean validateLicenseKey(String license, int pin) {
-    boolean retVal = false;
-    try {
-      byte[] licenseBytes = licenseStringToBytes(license);
-      //AccessControl.setMessage("licenseBytes.length: " + licenseBytes.length);
-      retVal = validateLicenseBytes(licenseBytes, pin);
-    } catch(Exception e) {
-      AccessControl.postException(e);
-    }
-    return retVal;
+  public synchronized boolean validateLicenseKey(String license, int pin) {
+    return myCodec.isValid(license, pin, myWork);
   }
 
   /**
    * Takes an array of eight bytes and decrypts it with the
    * DES key to determine whether it corresponds to the given PIN.
    */
-  public boolean validateLicenseBytes(byte[] edata, int pin) {
-    boolean retVal = false;
-    //AccessControl.setMessage("validateLicenseBytes-->pin: " + pin);
-    try {
-      // Set up the decryptor engine with the local key:
-      DESDecryptorEngine de = new DESDecryptorEngine(myKey);
-      //AccessControl.setMessage("validateLicenseBytes-->1");
-      PKCS5UnformatterEngine ue = new PKCS5UnformatterEngine(de);
-      //AccessControl.setMessage("validateLicenseBytes-->2");
-      ByteArrayInputStream bais = new ByteArrayInputStream(edata);
-      //AccessControl.setMessage("validateLicenseBytes-->3");
-      BlockDecryptor decryptor = new BlockDecryptor(ue, bais);
-      //AccessControl.setMessage("validateLicenseBytes-->4");
-      
-      // Decrypt the given byte array into a new byte array
-      // of length 4:
-      byte[] result = new byte[4];
-      int bytesRead = decryptor.read(result);
-      //AccessControl.setMessage("read " + bytesRead + " bytes");
-      // Use input streams to convert the byte array to an int:
-      int licenseInt = parseInt(result);
-      //AccessControl.setMessage("result: " + retVal);
-      //AccessControl.setMessage("pin: " + pin);
-      // Check whether the resulting int equals the given PIN:
-      retVal = (pin == licenseInt);
-      //AccessControl.setMessage("no exception");
-    } catch(Exception e) {
-      AccessControl.postException(e);
+  public synchronized boolean validateLicenseBytes(byte[] edata, int pin) {
+    if((edata == null) || (edata.length != LicenseCodec.BLOCK_SIZE)) {
+      return false;
     }
-    //AccessControl.setMessage("returning: " + retVal);
-    return retVal;
+    return myCodec.isValid(edata, 0, pin, myWork, LicenseCodec.BLOCK_SIZE);
   }
 
 //----------------------------------------------------------------
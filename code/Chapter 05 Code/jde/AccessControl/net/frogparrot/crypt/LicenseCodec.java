@@ -0,0 +1,344 @@
+package net.frogparrot.crypt;
+
+/**
+ * Encodes and checks the license strings that the GetLicense
+ * servlet sends for a PIN.
+ *
+ * A license is the PIN as 4 big-endian bytes, padded to one 8-byte
+ * block with PKCS5 padding (four bytes of 4), encrypted with DES
+ * (in ECB mode), and written as two ints: val1 + "z" + val2.
+ *
+ * This class only uses basic Java (no RIM or javax.crypto classes),
+ * so the same file is used by the AccessControl application and by
+ * the GetLicense servlet; only the package line differs.  It does
+ * its own DES on the single block, and all its work is done in
+ * arrays passed in by the caller, so checking a license doesn't
+ * create any objects.  The key schedule is worked out once, in the
+ * constructor, and never changed, so one codec can be shared by
+ * several threads.
+ *
+ * @author Carol Hamer
+ */
+public class LicenseCodec {
+
+//----------------------------------------------------------------
+//  static fields
+
+  /**
+   * A character to separate the two ints that make up the
+   * license string.
+   */
+  public static final char LICENSE_SEPARATOR = 'z';
+
+  /**
+   * The size of a DES block, and of the work buffer used by
+   * isValid() (an encrypted block followed by a decrypted one).
+   */
+  public static final int BLOCK_SIZE = 8;
+  public static final int WORK_SIZE = 2*BLOCK_SIZE;
+
+  /**
+   * The DES tables, as given in FIPS 46-3.  The bit positions
+   * count from 1, starting at the most significant bit.
+   */
+  private static final byte[] IP = {
+    58, 50, 42, 34, 26, 18, 10, 2, 60, 52, 44, 36, 28, 20, 12, 4,
+    62, 54, 46, 38, 30, 22, 14, 6, 64, 56, 48, 40, 32, 24, 16, 8,
+    57, 49, 41, 33, 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3,
+    61, 53, 45, 37, 29, 21, 13, 5, 63, 55, 47, 39, 31, 23, 15, 7
+  };
+
+  private static final byte[] FP = {
+    40, 8, 48, 16, 56, 24, 64, 32, 39, 7, 47, 15, 55, 23, 63, 31,
+    38, 6, 46, 14, 54, 22, 62, 30, 37, 5, 45, 13, 53, 21, 61, 29,
+    36, 4, 44, 12, 52, 20, 60, 28, 35, 3, 43, 11, 51, 19, 59, 27,
+    34, 2, 42, 10, 50, 18, 58, 26, 33, 1, 41, 9, 49, 17, 57, 25
+  };
+
+  private static final byte[] E = {
+    32, 1, 2, 3, 4, 5, 4, 5, 6, 7, 8, 9, 8, 9, 10, 11,
+    12, 13, 12, 13, 14, 15, 16, 17, 16, 17, 18, 19, 20, 21, 20, 21,
+    22, 23, 24, 25, 24, 25, 26, 27, 28, 29, 28, 29, 30, 31, 32, 1
+  };
+
+  private static final byte[] P = {
+    16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+    2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25
+  };
+
+  private static final byte[] PC1 = {
+    57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
+    10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
+    63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
+    14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4
+  };
+
+  private static final byte[] PC2 = {
+    14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
+    23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
+    41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
+    44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32
+  };
+
+  private static final byte[] SHIFTS = {
+    1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1
+  };
+
+  private static final byte[][] S = {
+    { 14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+      0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+      4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+      15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13 },
+    { 15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+      3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+      0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+      13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9 },
+    { 10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+      13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+      13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+      1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12 },
+    { 7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+      13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+      10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+      3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14 },
+    { 2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+      14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+      4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+      11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3 },
+    { 12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+      10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+      9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+      4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13 },
+    { 4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+      13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+      1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+      6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12 },
+    { 13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+      1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+      7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+      2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11 }
+  };
+
+//----------------------------------------------------------------
+//  instance fields
+
+  /**
+   * The 16 round keys (48 bits each), in encryption order.
+   */
+  private long[] mySubkeys = new long[16];
+
+//----------------------------------------------------------------
+//  initialization
+
+  /**
+   * Constructor works out the round keys for the 8 bytes of
+   * DES key data.
+   */
+  public LicenseCodec(byte[] keyData) {
+    long cd = permute(getLong(keyData, 0), PC1, 64);
+    int c = (int)(cd >>> 28) & 0xfffffff;
+    int d = (int)cd & 0xfffffff;
+    for(int i = 0; i < 16; i++) {
+      c = ((c << SHIFTS[i]) | (c >>> (28 - SHIFTS[i]))) & 0xfffffff;
+      d = ((d << SHIFTS[i]) | (d >>> (28 - SHIFTS[i]))) & 0xfffffff;
+      mySubkeys[i] = permute(((long)c << 28) | d, PC2, 56);
+    }
+  }
+
+//----------------------------------------------------------------
+//  license utilities
+
+  /**
+   * Takes a human-readable license string (val1 + "z" + val2)
+   * and stores it as 8 bytes in block, starting at offset.
+   * Returns false if the string isn't a license.
+   */
+  public static boolean parseLicense(String license, byte[] block, int offset) {
+    if(license == null) {
+      return false;
+    }
+    int index = license.indexOf(LICENSE_SEPARATOR);
+    if(index == -1) {
+      return false;
+    }
+    long val1 = parseInt(license, 0, index);
+    long val2 = parseInt(license, index + 1, license.length());
+    if((val1 == Long.MIN_VALUE) || (val2 == Long.MIN_VALUE)) {
+      return false;
+    }
+    putInt(block, offset, (int)val1);
+    putInt(block, offset + 4, (int)val2);
+    return true;
+  }
+
+  /**
+   * Parse the decimal int in license from start up to end,
+   * without making a substring.  Returns Long.MIN_VALUE if
+   * it isn't an int.
+   */
+  private static long parseInt(String license, int start, int end) {
+    boolean negative = (start < end) && (license.charAt(start) == '-');
+    if(negative) {
+      start++;
+    }
+    if((start == end) || (end - start > 10)) {
+      return Long.MIN_VALUE;
+    }
+    long val = 0;
+    for(int i = start; i < end; i++) {
+      int digit = license.charAt(i) - '0';
+      if((digit < 0) || (digit > 9)) {
+        return Long.MIN_VALUE;
+      }
+      val = val*10 + digit;
+    }
+    if(negative) {
+      val = -val;
+    }
+    if((val < Integer.MIN_VALUE) || (val > Integer.MAX_VALUE)) {
+      return Long.MIN_VALUE;
+    }
+    return val;
+  }
+
+  /**
+   * Decrypts the license string and checks whether it
+   * corresponds to the given PIN.  The work array must have
+   * at least WORK_SIZE bytes.
+   */
+  public boolean isValid(String license, int pin, byte[] work) {
+    if(!parseLicense(license, work, 0)) {
+      return false;
+    }
+    return isValid(work, 0, pin, work, BLOCK_SIZE);
+  }
+
+  /**
+   * Decrypts the 8-byte block in edata (starting at offset) into
+   * result (starting at resultOffset), and checks whether it
+   * holds the given PIN with the right padding.
+   */
+  public boolean isValid(byte[] edata, int offset, int pin,
+                         byte[] result, int resultOffset) {
+    decryptBlock(edata, offset, result, resultOffset);
+    if(getInt(result, resultOffset) != pin) {
+      return false;
+    }
+    for(int i = 4; i < BLOCK_SIZE; i++) {
+      if(result[resultOffset + i] != 4) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encrypts the PIN (with its padding) into the 8 bytes of
+   * edata, starting at offset.  This is what GetLicense does.
+   */
+  public void encryptPin(int pin, byte[] edata, int offset) {
+    long block = ((long)pin << 32) | 0x04040404L;
+    putLong(edata, offset, crypt(block, false));
+  }
+
+  /**
+   * Make the human-readable string for an encrypted block.
+   */
+  public static String licenseString(byte[] edata, int offset) {
+    return (getInt(edata, offset) + "" + LICENSE_SEPARATOR)
+        + getInt(edata, offset + 4);
+  }
+
+//----------------------------------------------------------------
+//  DES
+
+  /**
+   * Decrypts one 8-byte block.  The input and output
+   * may be the same array.
+   */
+  public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+    putLong(out, outOffset, crypt(getLong(in, inOffset), true));
+  }
+
+  /**
+   * Encrypts one 8-byte block.  The input and output
+   * may be the same array.
+   */
+  public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+    putLong(out, outOffset, crypt(getLong(in, inOffset), false));
+  }
+
+  /**
+   * The 16 DES rounds on one block; decryption uses the
+   * round keys in reverse order.
+   */
+  private long crypt(long block, boolean decrypt) {
+    long ip = permute(block, IP, 64);
+    int left = (int)(ip >>> 32);
+    int right = (int)ip;
+    for(int i = 0; i < 16; i++) {
+      long subkey = mySubkeys[decrypt ? 15 - i : i];
+      int newRight = left ^ feistel(right, subkey);
+      left = right;
+      right = newRight;
+    }
+    // the halves are swapped after the last round:
+    long preOutput = ((long)right << 32) | (left & 0xffffffffL);
+    return permute(preOutput, FP, 64);
+  }
+
+  /**
+   * The DES round function.
+   */
+  private static int feistel(int right, long subkey) {
+    long e = permute(right & 0xffffffffL, E, 32) ^ subkey;
+    int sOut = 0;
+    for(int i = 0; i < 8; i++) {
+      int six = (int)(e >>> (42 - 6*i)) & 0x3f;
+      int row = ((six & 0x20) >>> 4) | (six & 1);
+      int col = (six >>> 1) & 0xf;
+      sOut = (sOut << 4) | S[i][row*16 + col];
+    }
+    return (int)permute(sOut & 0xffffffffL, P, 32);
+  }
+
+  /**
+   * Build a number from the bits of in (which has inBits bits)
+   * in the order given by the table.
+   */
+  private static long permute(long in, byte[] table, int inBits) {
+    long out = 0;
+    for(int i = 0; i < table.length; i++) {
+      out = (out << 1) | ((in >>> (inBits - table[i])) & 1);
+    }
+    return out;
+  }
+
+//----------------------------------------------------------------
+//  byte packing (big-endian)
+
+  public static int getInt(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 24)
+        | ((data[offset + 1] & 0xff) << 16)
+        | ((data[offset + 2] & 0xff) << 8)
+        | (data[offset + 3] & 0xff);
+  }
+
+  public static void putInt(byte[] data, int offset, int val) {
+    data[offset] = (byte)(val >>> 24);
+    data[offset + 1] = (byte)(val >>> 16);
+    data[offset + 2] = (byte)(val >>> 8);
+    data[offset + 3] = (byte)val;
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    return ((long)getInt(data, offset) << 32)
+        | (getInt(data, offset + 4) & 0xffffffffL);
+  }
+
+  private static void putLong(byte[] data, int offset, long val) {
+    putInt(data, offset, (int)(val >>> 32));
+    putInt(data, offset + 4, (int)val);
+  }
+
+}
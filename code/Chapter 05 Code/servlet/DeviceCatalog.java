@@ -0,0 +1,194 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The handset models that the game is built for, read from the
+ * models/*.properties files used by the Ant build (see antbuild).
+ * Each file gives the model name and the devices it runs on:
+ * <pre>
+ *   model=8700
+ *   devices=8300,8310,...,8700v,8700c,...
+ * </pre>
+ *
+ * A device is recognized by its User-Agent, which starts with
+ * "BlackBerry" followed by the device (or model) name, such as
+ * "BlackBerry8700/4.1.0 Profile/MIDP-2.0 ...".  The names are stored
+ * in a prefix trie, built once, so finding a User-Agent's model
+ * is a single walk along the User-Agent, keeping the longest name
+ * that matches.  The trie is never changed after it is built, so
+ * many threads can search it at once.
+ *
+ * The trie's nodes are stored in arrays: each node has a character,
+ * its first child, its next sibling, and the index of the model
+ * whose name ends at that node (or -1).
+ */
+public class DeviceCatalog {
+
+  /**
+   * The start of every BlackBerry User-Agent.
+   */
+  public static final String UA_PREFIX = "BlackBerry";
+
+  /**
+   * The model names, in the order they were loaded.
+   */
+  private String[] myModels;
+
+  /**
+   * The trie nodes; node 0 is the root.
+   */
+  private char[] myChars;
+  private int[] myFirstChild;
+  private int[] myNextSibling;
+  private int[] myModelIndex;
+  private int myNumNodes;
+
+  /**
+   * Read every .properties file in the models directory.  Returns
+   * null if there are no model files.
+   */
+  public static DeviceCatalog load(File modelsDir) {
+    File[] files = modelsDir.listFiles();
+    if(files == null) {
+      return null;
+    }
+    Arrays.sort(files);   // the same order every time
+    ArrayList<String> models = new ArrayList<String>();
+    ArrayList<String[]> devices = new ArrayList<String[]>();
+    for(int i = 0; i < files.length; i++) {
+      if(!files[i].getName().endsWith(".properties")) {
+        continue;
+      }
+      Properties props = new Properties();
+      try {
+        InputStream is = new FileInputStream(files[i]);
+        try {
+          props.load(is);
+        } finally {
+          is.close();
+        }
+      } catch (IOException e) {
+        System.out.println("Could not read " + files[i] + ": " + e);
+        continue;
+      }
+      String model = props.getProperty("model");
+      if(model == null) {
+        continue;
+      }
+      models.add(model.trim());
+      devices.add(props.getProperty("devices", "").split(","));
+    }
+    if(models.isEmpty()) {
+      return null;
+    }
+    return new DeviceCatalog(models, devices);
+  }
+
+  /**
+   * Build the trie from the model names and their device names.
+   */
+  public DeviceCatalog(List<String> models, List<String[]> devices) {
+    myModels = models.toArray(new String[models.size()]);
+    int size = 16;
+    myChars = new char[size];
+    myFirstChild = new int[size];
+    myNextSibling = new int[size];
+    myModelIndex = new int[size];
+    newNode('\0');   // the root
+    for(int i = 0; i < myModels.length; i++) {
+      add(UA_PREFIX + myModels[i], i);
+      String[] names = devices.get(i);
+      for(int j = 0; j < names.length; j++) {
+        if(names[j].trim().length() > 0) {
+          add(UA_PREFIX + names[j].trim(), i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add a node with no children or siblings, and return its index.
+   */
+  private int newNode(char c) {
+    if(myNumNodes == myChars.length) {
+      int size = myNumNodes*2;
+      myChars = Arrays.copyOf(myChars, size);
+      myFirstChild = Arrays.copyOf(myFirstChild, size);
+      myNextSibling = Arrays.copyOf(myNextSibling, size);
+      myModelIndex = Arrays.copyOf(myModelIndex, size);
+    }
+    myChars[myNumNodes] = c;
+    myFirstChild[myNumNodes] = -1;
+    myNextSibling[myNumNodes] = -1;
+    myModelIndex[myNumNodes] = -1;
+    return(myNumNodes++);
+  }
+
+  /**
+   * Return the child of node with the character c, or -1.
+   */
+  private int findChild(int node, char c) {
+    int child = myFirstChild[node];
+    while((child != -1) && (myChars[child] != c)) {
+      child = myNextSibling[child];
+    }
+    return(child);
+  }
+
+  /**
+   * Store a name for a model.  If two models list the same
+   * device, the first one is kept.
+   */
+  private void add(String name, int modelIndex) {
+    int node = 0;
+    for(int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      int child = findChild(node, c);
+      if(child == -1) {
+        child = newNode(c);
+        myNextSibling[child] = myFirstChild[node];
+        myFirstChild[node] = child;
+      }
+      node = child;
+    }
+    if(myModelIndex[node] == -1) {
+      myModelIndex[node] = modelIndex;
+    }
+  }
+
+  /**
+   * Find the model for a User-Agent, using the longest device name
+   * that the User-Agent starts with.  Returns -1 if there isn't one.
+   */
+  public int findModel(String userAgent) {
+    if(userAgent == null) {
+      return(-1);
+    }
+    int found = -1;
+    int node = 0;
+    for(int i = 0; i < userAgent.length(); i++) {
+      node = findChild(node, userAgent.charAt(i));
+      if(node == -1) {
+        break;
+      }
+      if(myModelIndex[node] != -1) {
+        found = myModelIndex[node];
+      }
+    }
+    return(found);
+  }
+
+  /**
+   * The number of models.
+   */
+  public int size() {
+    return myModels.length;
+  }
+
+  /**
+   * The name of a model, such as "8700".
+   */
+  public String getModel(int index) {
+    return myModels[index];
+  }
+}
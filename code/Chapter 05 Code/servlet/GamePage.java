@@ -1,4 +1,6 @@
 import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
 import javax.servlet.*;
 import javax.servlet.http.*;
 
@@ -6,36 +8,129 @@ import javax.servlet.http.*;
  * A minimal servlet that returns the link to the correct
  * version of the game for the BlackBerry handset
  * to download the game OTA.
+ *
+ * The handset models are read from the models/*.properties files
+ * (the same files the Ant build uses), in the web application's
+ * models directory or the one given by the "models" init parameter.
+ * If there are none, only the 8700 is supported.
+ *
+ * Every model's page is built once, when the servlet starts, and
+ * is sent with an ETag, so a handset that already has the page
+ * gets a "304 Not Modified" reply instead.
  */
 public class GamePage extends HttpServlet {
 
   /**
-   * Handle the GET request (others are ignored).
+   * The model used if there are no model files.
    */
-  public void doGet(HttpServletRequest request, HttpServletResponse response)
-      throws IOException, ServletException {
-    // get the User-Agent to identify the device accessing the page:
-    String userAgent = request.getHeader("User-Agent");
+  private static final String DEFAULT_MODEL = "8700";
 
-    // Prepare the response page:
-    response.setContentType("text/html");
-    PrintWriter out = response.getWriter();
+  /**
+   * Finds the handset model from the User-Agent.
+   */
+  private DeviceCatalog myCatalog;
+
+  /**
+   * The page for each model in the catalog, and its ETag.
+   */
+  private byte[][] myPages;
+  private String[] myETags;
+
+  /**
+   * The page for handsets without a version of the game.
+   */
+  private byte[] mySorryPage;
+  private String mySorryETag;
+
+  /**
+   * Load the handset models, and build their pages.
+   */
+  public void init() throws ServletException {
+    String dirName = getInitParameter("models");
+    if(dirName == null) {
+      dirName = getServletContext().getRealPath("models");
+    }
+    if(dirName != null) {
+      myCatalog = DeviceCatalog.load(new File(dirName));
+    }
+    if(myCatalog == null) {
+      ArrayList<String> models = new ArrayList<String>();
+      models.add(DEFAULT_MODEL);
+      ArrayList<String[]> devices = new ArrayList<String[]>();
+      devices.add(new String[0]);
+      myCatalog = new DeviceCatalog(models, devices);
+    }
+
+    // get the context to construct the correct URL
+    // for the Jad file, relative to this installation
+    String context = getServletContext().getContextPath();
+    myPages = new byte[myCatalog.size()][];
+    myETags = new String[myCatalog.size()];
+    for(int i = 0; i < myCatalog.size(); i++) {
+      String model = myCatalog.getModel(i);
+      myPages[i] = makePage("<a href=\"" + context + "/binaries/" + model
+          + "/LadybugMaze.jad\">Ladybug Maze</a> ");
+      myETags[i] = makeETag(model, myPages[i]);
+    }
+    mySorryPage = makePage("Sorry, but this game is not available for your handset.");
+    mySorryETag = makeETag("none", mySorryPage);
+  }
 
+  /**
+   * Build the bytes of a page with the given body.
+   */
+  private byte[] makePage(String body) throws ServletException {
+    StringWriter sw = new StringWriter();
+    PrintWriter out = new PrintWriter(sw);
     out.println("<html>");
     out.println("<head>");
     out.println("<title>Ladybug Maze download page</title>");
     out.println("</head>");
     out.println("<body bgcolor=\"white\">");
-
-    // get the context to construct the correct URL 
-    // for the Jad file, relative to this installation
-    String context = request.getContextPath();
-    if((userAgent != null) && (userAgent.startsWith("BlackBerry8700"))) {
-      out.println("<a href=\"" + context + "/binaries/8700/LadybugMaze.jad\">Ladybug Maze</a> ");
-    } else {
-      out.println("Sorry, but this game is not available for your handset.");
-    }
+    out.println(body);
     out.println("</body>");
     out.println("</html>");
+    out.close();
+    try {
+      return sw.toString().getBytes("ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new ServletException(e);
+    }
+  }
+
+  /**
+   * An ETag made from the model name and a checksum of the page.
+   */
+  private static String makeETag(String model, byte[] page) {
+    CRC32 crc = new CRC32();
+    crc.update(page);
+    return "\"" + model + "-" + Long.toHexString(crc.getValue()) + "\"";
+  }
+
+  /**
+   * Handle the GET request (others are ignored).
+   */
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    // get the User-Agent to identify the device accessing the page:
+    int modelIndex = myCatalog.findModel(request.getHeader("User-Agent"));
+    byte[] page = (modelIndex == -1) ? mySorryPage : myPages[modelIndex];
+    String etag = (modelIndex == -1) ? mySorryETag : myETags[modelIndex];
+
+    // the page depends on the User-Agent, so caches must keep one per device:
+    response.setHeader("Vary", "User-Agent");
+    response.setHeader("ETag", etag);
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if((ifNoneMatch != null) && (ifNoneMatch.indexOf(etag) != -1)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    // send the prepared page:
+    response.setContentType("text/html");
+    response.setContentLength(page.length);
+    OutputStream os = response.getOutputStream();
+    os.write(page);
+    os.close();
   }
 }
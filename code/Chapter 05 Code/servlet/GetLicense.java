@@ -3,53 +3,170 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.security.GeneralSecurityException;
 
 /**
  * A minimal servlet that returns the license key for
  * the given PIN.
  *
+ * If the web application has a license table (see LicenseTable),
+ * the license is looked up in it, and DES is only run for PINs
+ * that aren't in the table.
+ *
  * @author Carol Hamer
  */
 public class GetLicense extends HttpServlet {
 
+  /**
+   * The DES key used to generate the license is hard-coded.
+   */
+  private static final byte[] KEY_DATA = {
+      (byte)-29, (byte)14, (byte)-22, (byte)35, 
+      (byte)-53, (byte)4, (byte)-3, (byte)-48
+  };
+
+  /**
+   * The key never changes, so it is derived only once.
+   */
+  private static final SecretKey DES_KEY = makeKey();
+
+  /**
+   * A Cipher can't be used by two threads at once, so each
+   * request thread keeps its own, already initialized for
+   * encryption.  It is reused for every license the thread
+   * computes.
+   */
+  private static final ThreadLocal<Cipher> CIPHERS =
+      ThreadLocal.withInitial(GetLicense::makeCipher);
+
+  /**
+   * The size of the buffer used to read the POST data.
+   */
+  private static final int BUFFER_SIZE = 256;
+
+  /**
+   * The longest PIN value that is accepted (a PIN is 8 hex digits).
+   */
+  private static final int MAX_PIN_LENGTH = 8;
+
+  /**
+   * Each request thread reuses its own buffer, for reading the POST
+   * data and then for encrypting the PIN.  Only JDK classes are kept
+   * in the ThreadLocals, so the container's threads don't hold on to
+   * this web application's classes after it is undeployed.
+   */
+  private static final ThreadLocal<byte[]> BUFFERS =
+      ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+  /**
+   * The license table's file, in the web application's directory.
+   * It can be changed with the "licenseTable" init parameter.
+   */
+  private static final String LICENSE_TABLE_FNM = "licenses.dat";
+
+  /**
+   * The pre-computed licenses, or null if there is no table.
+   */
+  private LicenseTable myLicenseTable;
+
+  /**
+   * Some PINs to check that LicenseCodec (which the handset
+   * uses to check the license) agrees with the Cipher.
+   */
+  private static final int[] TEST_PINS = {
+      0, 1, 0x2100000A, 0x7fffffff, 0x80000000, 0xffffffff
+  };
+
+  /**
+   * Check the licenses against LicenseCodec, and open the
+   * license table, if there is one.
+   */
+  public void init() throws ServletException {
+    checkCodec();
+    String fnm = getInitParameter("licenseTable");
+    if(fnm == null) {
+      fnm = getServletContext().getRealPath(LICENSE_TABLE_FNM);
+    }
+    if((fnm != null) && new File(fnm).exists()) {
+      myLicenseTable = LicenseTable.open(new File(fnm));
+      if(myLicenseTable != null) {
+        System.out.println("Loaded " + myLicenseTable.size()
+            + " licenses from " + fnm);
+      }
+    }
+  }
+
+  /**
+   * Make sure that the handset's decryption (done by LicenseCodec,
+   * without javax.crypto) accepts the licenses that this servlet
+   * sends.  A warning is printed if it doesn't.
+   */
+  private static void checkCodec() {
+    LicenseCodec codec = new LicenseCodec(KEY_DATA);
+    byte[] ciphertext = new byte[LicenseCodec.BLOCK_SIZE];
+    byte[] work = new byte[LicenseCodec.WORK_SIZE];
+    for(int i = 0; i < TEST_PINS.length; i++) {
+      int pin = TEST_PINS[i];
+      try {
+        encryptPin(pin, ciphertext);
+      } catch (GeneralSecurityException e) {
+        e.printStackTrace();
+        return;
+      }
+      if(!codec.isValid(LicenseCodec.licenseString(ciphertext, 0), pin, work)) {
+        System.out.println("Warning: LicenseCodec rejects the license for PIN "
+            + Integer.toHexString(pin));
+      }
+    }
+  }
+
+  /**
+   * Create the DES key from the hard-coded key data.
+   * Returns null if DES isn't available.
+   */
+  private static SecretKey makeKey() {
+    try {
+      SecretKeyFactory scf = SecretKeyFactory.getInstance("DES");
+      return scf.generateSecret(new DESKeySpec(KEY_DATA));
+    } catch (GeneralSecurityException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Create a DES cipher, initialized for encryption with the key.
+   */
+  private static Cipher makeCipher() {
+    try {
+      Cipher desCipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
+      desCipher.init(Cipher.ENCRYPT_MODE, DES_KEY);
+      return desCipher;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   /**
    * Get the license corresponding to the PIN.
    */
   String getLicense(int pin) {
+    if(myLicenseTable != null) {
+      String license = myLicenseTable.lookup(pin);
+      if(license != null) {
+        return license;
+      }
+    }
+
     String retString = "";
     try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      DataOutputStream dos = new DataOutputStream(baos);
-      dos.writeInt(pin);
-      baos.close();
-      dos.close();
-      baos.close();
-      byte[] pinData = baos.toByteArray();
-      
-      SecretKeyFactory scf = SecretKeyFactory.getInstance("DES");
-      // The DES key used to generate the license is hard-coded:
-      byte[] keyData = {
-          (byte)-29, (byte)14, (byte)-22, (byte)35, 
-          (byte)-53, (byte)4, (byte)-3, (byte)-48
-      };
-      DESKeySpec keySpec = new DESKeySpec(keyData);
-      SecretKey desKey = scf.generateSecret(keySpec);
-      Cipher desCipher;
-
-      // Create the cipher 
-      desCipher = Cipher.getInstance("DES/ECB/PKCS5Padding");
-      // Initialize the cipher for encryption
-      desCipher.init(Cipher.ENCRYPT_MODE, desKey);
-
-      // Encrypt the pin
-      byte[] ciphertext = desCipher.doFinal(pinData);
+      // readField() is done with the buffer by now:
+      byte[] ciphertext = BUFFERS.get();
+      encryptPin(pin, ciphertext, 0);
 
       // Turn the encrypted byte array into a human-readable string
-      DataInputStream stream 
-          = new DataInputStream(new ByteArrayInputStream(ciphertext));
-      int val1 = stream.readInt();
-      int val2 = stream.readInt();
-      stream.close();
+      int val1 = getInt(ciphertext, 0);
+      int val2 = getInt(ciphertext, 4);
       retString = val1 + "z" + val2;
      
     } catch (Exception e) {
@@ -59,14 +176,64 @@ public class GetLicense extends HttpServlet {
   }
 
   /**
-   * Use an input stream to convert an array of bytes to an int.
+   * Encrypt the PIN, and store the 8 encrypted bytes in ciphertext.
+   */
+  static void encryptPin(int pin, byte[] ciphertext)
+      throws GeneralSecurityException {
+    encryptPin(pin, ciphertext, 0);
+  }
+
+  /**
+   * Encrypt the PIN, and store the 8 encrypted bytes in ciphertext,
+   * starting at offset.  The PIN is put in the same place first,
+   * and encrypted in place, so nothing is allocated.
+   */
+  static void encryptPin(int pin, byte[] ciphertext, int offset)
+      throws GeneralSecurityException {
+    // The PIN is encrypted as 4 big-endian bytes:
+    putInt(ciphertext, offset, pin);
+
+    // Encrypt the pin (the padding makes it one 8-byte block).
+    // doFinal() is copy-safe, so the input and output can overlap:
+    try {
+      CIPHERS.get().doFinal(ciphertext, offset, 4, ciphertext, offset);
+    } catch (GeneralSecurityException e) {
+      // don't reuse a cipher that may have been left half-way through
+      CIPHERS.remove();
+      throw e;
+    }
+  }
+
+  /**
+   * Store an int in 4 bytes, most significant byte first
+   * (the same order as DataOutputStream.writeInt()).
+   */
+  static void putInt(byte[] data, int offset, int val) {
+    data[offset] = (byte)(val >>> 24);
+    data[offset + 1] = (byte)(val >>> 16);
+    data[offset + 2] = (byte)(val >>> 8);
+    data[offset + 3] = (byte)val;
+  }
+
+  /**
+   * Read an int from 4 bytes, most significant byte first
+   * (the same order as DataInputStream.readInt()).
+   */
+  static int getInt(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 24)
+        | ((data[offset + 1] & 0xff) << 16)
+        | ((data[offset + 2] & 0xff) << 8)
+        | (data[offset + 3] & 0xff);
+  }
+
+  /**
+   * Convert the first 4 bytes of an array to an int.
    */
   public static int parseInt(byte[] data) throws IOException {
-    DataInputStream stream 
-      = new DataInputStream(new ByteArrayInputStream(data));
-    int retVal = stream.readInt();
-    stream.close();
-    return(retVal);
+    if(data.length < 4) {
+      throw new EOFException();
+    }
+    return(getInt(data, 0));
   }
 
   /**
@@ -75,23 +242,26 @@ public class GetLicense extends HttpServlet {
   public void doPost(HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
 
-    int length = request.getContentLength();
-    byte[] content = new byte[length];
-    // get the input stream to read the user data from BlackBerry App World:
+    // get the input stream to read the user data from BlackBerry App World.
+    // Only the PIN is kept, so the data may be any length, and
+    // may be sent in chunks without a content length:
     InputStream is = request.getInputStream();
-    int read = is.read(content);
+    String pinString = readField(is, "PIN", MAX_PIN_LENGTH);
+    // it is sent as a hexidecimal string, hence the "16" argument
+    // when parsing it.  A PIN can use all 32 bits, so it's parsed
+    // as a long and then stored in an int:
+    long pinVal = -1;
+    if(pinString != null) {
+      try {
+        pinVal = Long.parseLong(pinString, 16);
+      } catch (NumberFormatException e) {
+      }
+    }
     // Many errors are ignored in this minimal example.
-    if(read != length) {
+    if((pinVal < 0) || (pinVal > 0xffffffffL)) {
       response.sendError(400);
     } else {
-      // get the PIN from the data:
-      String contentString = new String(content);
-      int startIndex = contentString.indexOf("PIN=");
-      int endIndex = contentString.indexOf("&", startIndex);
-      String pinString = contentString.substring(startIndex+4, endIndex);
-      // it is sent as a hexidecimal string, hence the "16"
-      // argument when parsing it:
-      int pin = Integer.parseInt(pinString, 16);
+      int pin = (int)pinVal;
 
       // Prepare the response data:
       String responseString = "key=" + getLicense(pin);
@@ -105,4 +275,55 @@ public class GetLicense extends HttpServlet {
       response.flushBuffer();
     }
   }
+
+  /**
+   * Read form data (name1=value1&name2=value2...) from the stream,
+   * a buffer at a time, until the named field is found, and return
+   * its value.  The other fields are skipped without being stored.
+   * Returns null if the field isn't there, or its value is longer
+   * than maxLength.  Values are not URL-decoded, since the PIN is
+   * plain hex digits.
+   */
+  static String readField(InputStream is, String name, int maxLength)
+      throws IOException {
+    byte[] buffer = BUFFERS.get();
+    // how much of the name has matched so far; -1 once it can't match:
+    int matched = 0;
+    boolean inValue = false;
+    // the value of the named field, or null while skipping a value:
+    StringBuffer value = null;
+
+    int numRead;
+    while((numRead = is.read(buffer)) != -1) {
+      for(int i = 0; i < numRead; i++) {
+        char c = (char)(buffer[i] & 0xff);
+        if(c == '&') {
+          if(value != null) {
+            return(value.toString().trim());
+          }
+          matched = 0;        // start reading the next name
+          inValue = false;
+        } else if(inValue) {
+          if(value != null) {
+            if(value.length() == maxLength) {
+              return(null);
+            }
+            value.append(c);
+          }
+        } else if(c == '=') {
+          inValue = true;
+          if(matched == name.length()) {
+            value = new StringBuffer();
+          }
+        } else if((matched >= 0) && (matched < name.length())
+            && (name.charAt(matched) == c)) {
+          matched++;
+        } else {
+          matched = -1;    // a different name
+        }
+      }
+    }
+    // the end of the data also ends the last value:
+    return((value == null) ? null : value.toString().trim());
+  }
 }
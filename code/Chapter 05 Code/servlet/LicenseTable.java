@@ -0,0 +1,224 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A table of license keys that were computed ahead of time, so
+ * that GetLicense can look up a PIN's license instead of running
+ * DES for every request.
+ *
+ * The table is a binary file, made by running this class:
+ * <pre>
+ *   java -cp servlet-api.jar;. LicenseTable firstPIN lastPIN licenses.dat
+ * </pre>
+ * where the PINs are hex, as App World sends them.  (The servlet
+ * API is needed because the licenses are made by GetLicense.)
+ * The file starts with a header:
+ * <pre>
+ *   magic  version  number of records  checksum  key check (8 bytes)
+ * </pre>
+ * (all big-endian ints), followed by one 12-byte record per PIN:
+ * <pre>
+ *   PIN  val1  val2
+ * </pre>
+ * where the license is val1 + "z" + val2.  The records are sorted by
+ * PIN, treating the PIN as an unsigned number.  The checksum is the
+ * CRC32 of the records, and the key check is the encrypted PIN 0,
+ * so a damaged table, or one made with a different key, is
+ * rejected when it is opened.
+ *
+ * The servlet memory-maps the file and finds a PIN with a
+ * binary search, which only reads the mapped bytes, so many
+ * threads can search at once.
+ *
+ * @author Carol Hamer
+ */
+public class LicenseTable {
+
+  /**
+   * The first bytes of a license table: "FPLT".
+   */
+  public static final int MAGIC = 0x46504c54;
+
+  /**
+   * The version of the file format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The sizes of the header and of each record, in bytes.
+   */
+  public static final int HEADER_SIZE = 24;
+  public static final int RECORD_SIZE = 12;
+
+  /**
+   * The mapped records.
+   */
+  private MappedByteBuffer myRecords;
+
+  /**
+   * The number of records.
+   */
+  private int myNumRecords;
+
+  /**
+   * Open a license table, checking its header, checksum and key.
+   * Returns null (after printing the reason) if the table can't
+   * be used.
+   */
+  public static LicenseTable open(File file) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        long size = channel.size();
+        if(size < HEADER_SIZE) {
+          throw new IOException("too short");
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if(map.getInt(0) != MAGIC) {
+          throw new IOException("not a license table");
+        }
+        if(map.getInt(4) != VERSION) {
+          throw new IOException("unknown version " + map.getInt(4));
+        }
+        int numRecords = map.getInt(8);
+        if((numRecords < 0)
+            || (size != HEADER_SIZE + (long)numRecords*RECORD_SIZE)) {
+          throw new IOException("wrong length");
+        }
+
+        // check the records:
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[RECORD_SIZE*1024];
+        map.position(HEADER_SIZE);
+        while(map.hasRemaining()) {
+          int len = Math.min(buffer.length, map.remaining());
+          map.get(buffer, 0, len);
+          crc.update(buffer, 0, len);
+        }
+        if(map.getInt(12) != (int)crc.getValue()) {
+          throw new IOException("bad checksum");
+        }
+
+        // check that the table was made with the servlet's key:
+        byte[] ciphertext = new byte[8];
+        GetLicense.encryptPin(0, ciphertext);
+        if((map.getInt(16) != GetLicense.getInt(ciphertext, 0))
+            || (map.getInt(20) != GetLicense.getInt(ciphertext, 4))) {
+          throw new IOException("made with a different key");
+        }
+
+        LicenseTable table = new LicenseTable();
+        table.myRecords = map;
+        table.myNumRecords = numRecords;
+        return table;
+      } finally {
+        // the mapping stays valid after the file is closed
+        raf.close();
+      }
+    } catch (Exception e) {
+      System.out.println("License table " + file + " not used: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * The number of PINs in the table.
+   */
+  public int size() {
+    return myNumRecords;
+  }
+
+  /**
+   * Find the PIN's license with a binary search.
+   * Returns null if the PIN isn't in the table.
+   */
+  public String lookup(int pin) {
+    // compare PINs as unsigned numbers, by flipping the sign bit:
+    int key = pin ^ 0x80000000;
+    int low = 0;
+    int high = myNumRecords - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      int pos = HEADER_SIZE + mid*RECORD_SIZE;
+      int midKey = myRecords.getInt(pos) ^ 0x80000000;
+      if(midKey < key) {
+        low = mid + 1;
+      } else if(midKey > key) {
+        high = mid - 1;
+      } else {
+        return(myRecords.getInt(pos + 4) + "z" + myRecords.getInt(pos + 8));
+      }
+    }
+    return(null);
+  }
+
+  /**
+   * Write a table holding the licenses for the PINs from first
+   * to last (as unsigned numbers).
+   */
+  public static void mint(int first, int last, File file)
+      throws IOException, java.security.GeneralSecurityException {
+    long numRecords = (last & 0xffffffffL) - (first & 0xffffffffL) + 1;
+    if((numRecords <= 0)
+        || (HEADER_SIZE + numRecords*RECORD_SIZE > Integer.MAX_VALUE)) {
+      throw new IOException("PIN range too big for one table");
+    }
+
+    byte[] ciphertext = new byte[8];
+    byte[] record = new byte[RECORD_SIZE];
+    CRC32 crc = new CRC32();
+    DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      dos.write(new byte[HEADER_SIZE]);   // filled in at the end
+      int pin = first;
+      for(long i = 0; i < numRecords; i++) {
+        GetLicense.encryptPin(pin, ciphertext);
+        GetLicense.putInt(record, 0, pin);
+        System.arraycopy(ciphertext, 0, record, 4, 8);
+        crc.update(record);
+        dos.write(record);
+        pin++;
+      }
+    } finally {
+      dos.close();
+    }
+
+    // now that the checksum is known, write the header:
+    GetLicense.encryptPin(0, ciphertext);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt((int)numRecords);
+      raf.writeInt((int)crc.getValue());
+      raf.write(ciphertext);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Make a license table: java LicenseTable firstPIN lastPIN file
+   */
+  public static void main(String[] args) {
+    if(args.length != 3) {
+      System.out.println("Usage: java LicenseTable firstPIN lastPIN file");
+      System.out.println("  (the PINs are in hex)");
+      return;
+    }
+    try {
+      int first = (int)Long.parseLong(args[0], 16);
+      int last = (int)Long.parseLong(args[1], 16);
+      long startTime = System.currentTimeMillis();
+      mint(first, last, new File(args[2]));
+      System.out.println("Wrote " + args[2] + " in "
+          + (System.currentTimeMillis() - startTime) + " ms");
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+
+// JTSSynth.java
+// Andrew Davison, ad@fivedots.coe.psu.ac.th, December 2009
+
+/* Play a tone sequence in MMAPI's JTS format (as made by
+   RingToneConverter) into a WAV file, so it can be heard without
+   a device's ToneControl.
+
+   The sequence is read as a stream of (event, value) byte pairs:
+       VERSION 1, TEMPO <bpm/4>, RESOLUTION <res>, SET_VOLUME <0-100>,
+       REPEAT <count> (applies to the next note), and <note> <length>
+   where a note is 0-127 (60 is middle C) or SILENCE (-1), and the
+   length is in 1/res'ths of a whole note (res is 64 by default).
+   Blocks (BLOCK_START, BLOCK_END, PLAY_BLOCK) are not supported.
+
+   Each note is a sine wave, made by stepping through a sine
+   wavetable that is computed once. The step for every note is
+   also computed once, when the synthesizer is created, so no
+   Math.sin() or Math.pow() calls are made while rendering. Notes
+   fade in and out over a couple of milliseconds to avoid clicks.
+
+   The samples are 16-bit mono PCM, written in fixed-size blocks, so
+   the memory used doesn't depend on the length of the tune. The WAV
+   header's sizes are filled in at the end.
+
+   Usage:
+      java JTSSynth <jts fnm> [<sample rate>]
+   writes the tune to a WAV file with the same name.
+*/
+
+import java.io.*;
+
+
+public class JTSSynth
+{
+  // constants taken from MMAPI's ToneControl class
+  private static final byte VERSION = -2;
+  private static final byte TEMPO = -3;
+  private static final byte RESOLUTION = -4;
+  private static final byte BLOCK_START = -5;
+  private static final byte BLOCK_END = -6;
+  private static final byte PLAY_BLOCK = -7;
+  private static final byte SET_VOLUME = -8;
+  private static final byte REPEAT = -9;
+  private static final byte SILENCE = -1;
+
+  private static final int DEFAULT_TEMPO = 120;       // in beats per minute
+  private static final int DEFAULT_RESOLUTION = 64;
+  private static final int DEFAULT_SAMPLE_RATE = 22050;
+
+  private static final int WAVE_BITS = 10;
+  private static final int WAVE_SIZE = 1 << WAVE_BITS;    // entries in the sine table
+  private static final short[] sineTable = makeSineTable();
+
+  private static final int MAX_GAIN = 26214;   // 80% of full volume, as a fraction of 2^15
+
+  private static final int BLOCK_SIZE = 4096;   // bytes of PCM written at a time
+  private static final int HEADER_SIZE = 44;    // of a WAV file
+
+
+  private int sampleRate;
+  private int[] phaseSteps = new int[128];  // for each note; 0 for notes too high to play
+  private int rampLen;                      // samples for a note to fade in or out
+
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int blockPos;
+  private long dataLen;       // bytes of PCM written
+
+
+
+  public static void main(String[] args)
+  {
+    if (args.length < 1 || args.length > 2) {
+      System.out.println("Usage: java JTSSynth <jts fnm> [<sample rate>]");
+      return;
+    }
+    try {
+      int sampleRate = (args.length == 2) ? Integer.parseInt(args[1]) : DEFAULT_SAMPLE_RATE;
+      JTSSynth synth = new JTSSynth(sampleRate);
+
+      int dotPos = args[0].lastIndexOf('.');
+      String wavFnm = ((dotPos == -1) ? args[0] : args[0].substring(0, dotPos)) + ".wav";
+
+      InputStream in = new BufferedInputStream( new FileInputStream(args[0]) );
+      long numSamples;
+      try {
+        numSamples = synth.synthesize(in, new File(wavFnm));
+      }
+      finally {
+        in.close();
+      }
+      System.out.println("Wrote " + wavFnm + ": " + numSamples + " samples (" +
+                          (numSamples*1000L)/sampleRate + " ms)");
+    }
+    catch (Exception e) {
+      System.err.println(e);
+    }
+  }  // end of main()
+
+
+
+  private static short[] makeSineTable()
+  // one cycle of a sine wave
+  {
+    short[] table = new short[WAVE_SIZE];
+    for (int i = 0; i < WAVE_SIZE; i++)
+      table[i] = (short) Math.round( Math.sin(2*Math.PI*i/WAVE_SIZE) * Short.MAX_VALUE);
+    return table;
+  }  // end of makeSineTable()
+
+
+
+  public JTSSynth(int sampleRate)
+  {
+    if (sampleRate < 4000 || sampleRate > 96000)
+      throw new IllegalArgumentException("sample rate out of range: " + sampleRate);
+    this.sampleRate = sampleRate;
+    rampLen = Math.max(sampleRate/500, 1);   // 2 ms
+
+    /* the phase is a 32-bit fraction of a cycle, so a note with
+       frequency f moves it on by f/sampleRate * 2^32 per sample */
+    for (int note = 0; note < 128; note++) {
+      double freq = 440.0 * Math.pow(2, (note - 69)/12.0);   // note 69 is A4
+      if (freq < sampleRate/2)
+        phaseSteps[note] = (int) Math.round(freq/sampleRate * 4294967296.0);
+      else
+        phaseSteps[note] = 0;    // too high to be sampled, so played as silence
+    }
+  }  // end of JTSSynth()
+
+
+
+  public long synthesize(InputStream in, File wavFile) throws IOException
+  // render the JTS sequence from in to wavFile, returning the number of samples
+  {
+    RandomAccessFile raf = new RandomAccessFile(wavFile, "rw");
+    try {
+      raf.setLength(0);
+      raf.write(new byte[HEADER_SIZE]);   // filled in at the end
+      blockPos = 0;
+      dataLen = 0;
+
+      render(in, raf);
+
+      flush(raf);
+      writeHeader(raf);
+    }
+    finally {
+      raf.close();
+    }
+    return dataLen/2;
+  }  // end of synthesize()
+
+
+
+  private void render(InputStream in, RandomAccessFile raf) throws IOException
+  // read the sequence's events, and write the samples for each note
+  {
+    if (readByte(in, true) != VERSION || readByte(in, false) != 1)
+      throw new IOException("Not a version 1 tone sequence");
+
+    int tempo = DEFAULT_TEMPO;
+    int resolution = DEFAULT_RESOLUTION;
+    int volume = 100;
+    int repeat = 1;
+
+    int event;
+    while ((event = readByte(in, true)) != -1000) {
+      int value = readByte(in, false);
+      if (event == TEMPO) {
+        if (value < 5)
+          throw new IOException("Tempo out of range: " + value);
+        tempo = value*4;
+      }
+      else if (event == RESOLUTION) {
+        if (value < 1)
+          throw new IOException("Resolution out of range: " + value);
+        resolution = value;
+      }
+      else if (event == SET_VOLUME)
+        volume = Math.max(0, Math.min(value, 100));
+      else if (event == REPEAT) {
+        if (value < 2)
+          throw new IOException("Repeat count out of range: " + value);
+        repeat = value;
+      }
+      else if (event >= SILENCE) {    // a note or silence
+        if (value < 1)
+          throw new IOException("Note length out of range: " + value);
+        // whole note = 4 beats, and there are tempo beats per minute
+        long numSamples = (value * 240L * sampleRate) / ((long) resolution * tempo);
+        for (int i = 0; i < repeat; i++)
+          playNote(event, volume, numSamples, raf);
+        repeat = 1;
+      }
+      else if (event == BLOCK_START || event == BLOCK_END || event == PLAY_BLOCK)
+        throw new IOException("Blocks are not supported");
+      else
+        throw new IOException("Unknown event: " + event);
+    }
+  }  // end of render()
+
+
+
+  private int readByte(InputStream in, boolean endAllowed) throws IOException
+  /* Read a signed byte. At the end of the input, return -1000 if
+     endAllowed, otherwise the sequence has been cut short. */
+  {
+    int b = in.read();
+    if (b == -1) {
+      if (endAllowed)
+        return -1000;
+      throw new EOFException("Tone sequence ends in the middle of an event");
+    }
+    return (byte) b;
+  }  // end of readByte()
+
+
+
+  private void playNote(int note, int volume, long numSamples, RandomAccessFile raf)
+                                                          throws IOException
+  {
+    int step = (note == SILENCE) ? 0 : phaseSteps[note];
+    int gain = (step == 0) ? 0 : (volume * MAX_GAIN)/100;
+    long ramp = Math.min(rampLen, numSamples/2);
+    int phase = 0;
+
+    for (long i = 0; i < numSamples; i++) {
+      int sample = 0;
+      if (gain != 0) {
+        int g = gain;
+        if (i < ramp)    // fade in
+          g = (int) ((g * i)/ramp);
+        else if (numSamples - i <= ramp)   // fade out
+          g = (int) ((g * (numSamples - i - 1))/ramp);
+        sample = (sineTable[phase >>> (32 - WAVE_BITS)] * g) >> 15;
+        phase += step;
+      }
+      if (blockPos == BLOCK_SIZE)
+        flush(raf);
+      block[blockPos++] = (byte) sample;           // little-endian
+      block[blockPos++] = (byte) (sample >> 8);
+    }
+  }  // end of playNote()
+
+
+
+  private void flush(RandomAccessFile raf) throws IOException
+  // write the filled part of the block
+  {
+    if (dataLen + blockPos > 0xFFFFFFFFL - (HEADER_SIZE - 8))
+      throw new IOException("Tune is too long for a WAV file");
+    raf.write(block, 0, blockPos);
+    dataLen += blockPos;
+    blockPos = 0;
+  }  // end of flush()
+
+
+
+  private void writeHeader(RandomAccessFile raf) throws IOException
+  // a WAV header for 16-bit mono PCM, with dataLen bytes of data
+  {
+    byte[] header = new byte[HEADER_SIZE];
+    putString(header, 0, "RIFF");
+    putInt(header, 4, (int) (dataLen + HEADER_SIZE - 8));
+    putString(header, 8, "WAVE");
+    putString(header, 12, "fmt ");
+    putInt(header, 16, 16);          // size of the fmt chunk
+    putShort(header, 20, 1);         // PCM
+    putShort(header, 22, 1);         // mono
+    putInt(header, 24, sampleRate);
+    putInt(header, 28, sampleRate*2);   // bytes per second
+    putShort(header, 32, 2);         // bytes per sample
+    putShort(header, 34, 16);        // bits per sample
+    putString(header, 36, "data");
+    putInt(header, 40, (int) dataLen);
+
+    raf.seek(0);
+    raf.write(header);
+  }  // end of writeHeader()
+
+
+  private static void putString(byte[] data, int pos, String s)
+  {
+    for (int i = 0; i < s.length(); i++)
+      data[pos+i] = (byte) s.charAt(i);
+  }
+
+  private static void putShort(byte[] data, int pos, int val)
+  {  data[pos] = (byte) val;
+     data[pos+1] = (byte) (val >> 8);  }
+
+  private static void putInt(byte[] data, int pos, int val)
+  {  putShort(data, pos, val);
+     putShort(data, pos+2, val >> 16);  }
+
+}  // end of JTSSynth class
@@ -0,0 +1,264 @@
+
+// RTTTLParser.java
+// Andrew Davison, ad@fivedots.coe.psu.ac.th, December 2009
+
+/* Parse a ringtone in RTTTL (Ringing Tones text transfer language)
+   format, read from an InputStream, into a ToneSequence.
+
+   An RTTTL ringtone has three parts, separated by ':'s:
+       name : defaults (d=, o=, b=) : comma-separated notes
+   e.g.
+       Ring:d=4,o=6,b=100:32C4,32C4,32D#4,16D#4
+
+   The stream is read through a small buffer, one token at a time,
+   so the whole file is never held in memory. All the parsing state
+   is in the parser object, so several parsers can run at once
+   (e.g. in different threads), and nothing is printed while parsing.
+   An error is reported by parse() throwing an Exception.
+
+   The rules are the same as in the original RingToneConverter:
+   white space is ignored everywhere, letters can be in either case,
+   and the notes stop at the end of the input or at an empty note.
+*/
+
+import java.io.*;
+
+
+public class RTTTLParser
+{
+  private static final byte C4 = 60;       // from MMAPI's ToneControl class
+  private static final byte SILENCE = -1;
+
+  private static final int BUF_SIZE = 512;   // for reading the stream
+  private static final char EOF = 'E';       // the 'separator' at the end of the input
+
+  // note: strings must be sorted in descending order of their length
+  private static final String[] durationStrings = {"16", "32", "1", "2", "4", "8" };
+  private static final int[] durationValues = { 16, 32, 1, 2, 4, 8 };
+
+  private static final String[] noteStrings = {
+                                          "C#", "D#", "F#", "G#", "A#", "C", "D",
+                                          "E", "F", "G", "A", "H", "B" };
+  private static final int[] noteValues = {1, 3, 6, 8, 10, 0, 2,
+                                           4, 5, 7, 9, 11, 11  }; // H (German) == B (English)
+
+  private static final String[] scaleStrings = { "3", "4", "5", "6", "7", "8" };
+  private static final int[] scaleValues = { 3, 4, 5, 6, 7, 8 };
+
+
+  private InputStream in;
+  private byte[] buf = new byte[BUF_SIZE];
+  private int bufPos = 0, bufLen = 0;
+
+  private byte[] token = new byte[32];   // the current token, upper-cased, without white space
+  private int tokenLen = 0;
+  private int tokenPos = 0;              // how much of the token has been parsed
+  private char lastSeparator = EOF;
+
+  private String songName = "";
+  private int tempo = 63;       // in beats per minute
+  private ToneSequence sequence = new ToneSequence();
+
+
+
+  public RTTTLParser(InputStream in)
+  {  this.in = in;  }
+
+
+
+  public byte[] parse() throws Exception
+  // Parse the ringtone, and return it in JTS format
+  {
+    tempo = 63;             // default tempo is 63
+    int defDuration = 4;    // default duration is a quarter note
+    int defScale = 6;       // default octave is 6
+    sequence.clear();
+
+    // start with Name, followed by colon :
+    readToken(':', ':');
+    songName = (tokenLen == 0) ? "" : new String(token, 0, tokenLen).toUpperCase();
+
+    // read defaults
+    do {
+      readToken(',', ':');
+      if (tokenLen > 0) {
+        if (skip("D="))
+          defDuration = readValue();
+        else if (skip("O="))
+          defScale = readValue();
+        else if (skip("B="))
+          tempo = readValue();
+        else
+          throw new Exception("Unknown default \"" + tokenString() + "\"");
+      }
+      else {
+        if (lastSeparator != ':')
+          throw new Exception("':' expected");
+        break;
+      }
+    } while (lastSeparator == ',');
+
+    // read note commands
+    while (lastSeparator != EOF) {
+      readToken(',', ',');
+      if (tokenLen == 0)
+        break;
+      int duration = tableLookup(durationStrings, durationValues, defDuration);
+      int note = tableLookup(noteStrings, noteValues, -1);
+
+      int dotCount = 0;    // dotted duration ?
+      // dot may appear before or after scale
+      if (skip("."))
+        dotCount = 1;
+
+      if (note >= 0) {    // octave
+        int scale = tableLookup(scaleStrings, scaleValues, defScale);
+        note = C4 + ((scale - 4) * 12) + note;
+      }
+      else if (skip("P"))  // pause
+        note = SILENCE;
+      else
+        throw new Exception("Unexpected note command: '" + tokenString() + "'");
+
+      if (skip("."))
+        dotCount = 1;
+
+      if (tokenPos < tokenLen)
+        throw new Exception("Unexpected note command: '" + tokenString() + "'");
+      addNote(note, duration, dotCount);
+    }
+
+    if (tempo < 20 || tempo > 508)
+      throw new Exception("tempo is out of range");
+    sequence.setTempo(tempo);
+    return sequence.toByteArray();
+  }  // end of parse()
+
+
+
+  public String getSongName()
+  {  return songName;  }
+
+  public int getNumNotes()
+  {  return sequence.getNumNotes();  }
+
+
+
+  // ------------------------- tokens -------------------------------
+
+
+  private int read() throws IOException
+  // return the next byte of the input (0-255), or -1 at the end
+  {
+    if (bufPos == bufLen) {
+      bufPos = 0;
+      bufLen = in.read(buf);
+      if (bufLen <= 0) {
+        bufLen = 0;
+        return -1;
+      }
+    }
+    return buf[bufPos++] & 0xff;
+  }  // end of read()
+
+
+
+  private void readToken(char sep1, char sep2) throws IOException
+  /* Read up to the next separator (sep1 or sep2) or the end of the input,
+     storing the upper-cased, non-white space bytes in token[].
+     lastSeparator is set to the separator, or EOF.
+  */
+  {
+    tokenLen = 0;
+    tokenPos = 0;
+    lastSeparator = EOF;
+
+    int b;
+    while ((b = read()) != -1) {
+      if (b == sep1 || b == sep2) {
+        lastSeparator = (char) b;
+        break;
+      }
+      if (b > 32) {    // skip white space
+        if (b >= 'a' && b <= 'z')
+          b -= 'a' - 'A';
+        if (tokenLen == token.length) {   // full, so double the size
+          byte[] newToken = new byte[tokenLen*2];
+          System.arraycopy(token, 0, newToken, 0, tokenLen);
+          token = newToken;
+        }
+        token[tokenLen++] = (byte) b;
+      }
+    }
+  }  // end of readToken()
+
+
+
+  private boolean skip(String s)
+  // if the rest of the token starts with s, then move past it
+  {
+    int len = s.length();
+    if (tokenPos + len > tokenLen)
+      return false;
+    for (int i = 0; i < len; i++) {
+      if (token[tokenPos + i] != s.charAt(i))
+        return false;
+    }
+    tokenPos += len;
+    return true;
+  }  // end of skip()
+
+
+
+  private int tableLookup(String[] strings, int[] values, int defValue)
+  // move past the first string that starts the rest of the token, returning its value
+  {
+    for (int i = 0; i < strings.length; i++) {
+      if (skip(strings[i]))
+        return values[i];
+    }
+    return defValue;
+  }  // end of tableLookup()
+
+
+
+  private int readValue()
+  // the rest of the token as a number
+  {
+    int value = Integer.parseInt( new String(token, tokenPos, tokenLen - tokenPos) );
+    tokenPos = tokenLen;
+    return value;
+  }  // end of readValue()
+
+
+  private String tokenString()
+  {  return new String(token, 0, tokenLen);  }
+
+
+
+  private void addNote(int note, int duration, int dotCount)
+  /* add a note to the sequence.
+        note - 0-128, as defined in ToneControl
+        duration - the divider of a full note. E.g. 4 stands for a quarter note
+        dotCount - if 1, then the duration is increased by half its length,
+                   if 2 by 3/4 of its length, etc.
+   */
+  {
+    // int length = (60000 * 4) /(duration * tempo);
+    int length = 64 / duration;
+    int add = 0;
+    int factor = 2;
+
+    while(dotCount > 0) {
+      add += length / factor;
+      factor *= 2;
+      dotCount--;
+    }
+    length += add;
+    if (length > 127)
+      length = 127;
+
+    sequence.addNote(note, length);
+  }  // end of addNote()
+
+}  // end of RTTTLParser class
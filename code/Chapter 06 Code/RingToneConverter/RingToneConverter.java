@@ -6,6 +6,14 @@
    converting it to the MMAPI tone player format (.jts). Output is text to a .txt
    file and binary to a .jts file.
 
+   The parsing is done by RTTTLParser, which reads the file as a stream,
+   and builds the sequence in a ToneSequence.
+
+   In batch mode (-dir), every .rtttl and .rtx file in a directory is
+   converted, using several threads. Each file gets its own parser,
+   so the threads share nothing. Only errors and a final summary
+   (including the number of files converted per second) are printed.
+
    Based on the RingToneConverter.java example in the WTK MobileMediaAPI examples,
 
    Info on RTTTL format:
@@ -19,322 +27,219 @@
 
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
 public class RingToneConverter
 {
-  // constants taken from MMAPI's ToneControl class
-  private static final byte VERSION = -2;
-  private static final byte TEMPO = -3;
-  private static final byte C4 = 60;
-  private static final byte SILENCE = -1;
-
-  // note: strings must be sorted in descending order of their length
-  private static final String[] durationStrings = {"16", "32", "1", "2", "4", "8" };
-  private static final int[] durationValues = { 16, 32, 1, 2, 4, 8 };
+  private static final char[] hexChars = "0123456789ABCDEF".toCharArray();
 
-  private static final String[] noteStrings = {
-                                          "C#", "D#", "F#", "G#", "A#", "C", "D", 
-                                          "E", "F", "G", "A", "H", "B" };
-  private static final int[] noteValues = {1, 3, 6, 8, 10, 0, 2, 
-                                           4, 5, 7, 9, 11, 11  }; // H (German) == B (English)
+  private static final String LINE_SEP = System.getProperty("line.separator");
 
-  private static final String[] scaleStrings = { "3", "4", "5", "6", "7", "8" };
-  private static final int[] scaleValues = { 3, 4, 5, 6, 7, 8 };
-
-  private static final String[] hexChars = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", 
-                                             "A", "B", "C", "D", "E", "F"};
 
 
+  public static void main(String[] args)
+  {
+    if (args.length == 1)
+      convertFile(args[0]);
+    else if ((args.length == 2 || args.length == 3) && args[0].equals("-dir")) {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      if (args.length == 3) {
+        try {
+          numThreads = Integer.parseInt(args[2]);
+        }
+        catch (NumberFormatException e)
+        {  System.out.println("Number of threads must be an integer");  }
+      }
+      convertDir(args[1], Math.max(numThreads, 1));
+    }
+    else {
+      System.out.println("Usage: java RingToneConverter <rtttl fnm>");
+      System.out.println("   or: java RingToneConverter -dir <directory> [<number of threads>]");
+    }
+  }  // end of main()
 
-  private static ArrayList<Integer> notes, lengths;
-  private static int readPos;
-  private static char lastSeparator;
-  private static int tempo = 80; // in beats per second
 
 
-  public static void main(String[] args) 
+  private static void convertFile(String fnm)
+  // convert a single file, reporting what was read
   {
-   if (args.length != 1)
-      System.out.println("Usage: java RingToneConverter <rtttl fnm>");
-    else {
+    try {
+      InputStream in = new BufferedInputStream( new FileInputStream(fnm) );
+      RTTTLParser parser = new RTTTLParser(in);
+      byte[] sequence;
       try {
-        DataInputStream in = new DataInputStream( new FileInputStream(args[0]) );
-        byte[] inputData = readInputStream(in);
+        sequence = parser.parse();
+      }
+      finally {
         in.close();
-
-        byte[] sequence = buildSequence(inputData);
-
-        String fnm = args[0].substring(0, args[0].indexOf("."));
-        dumpSequence(sequence, fnm+".txt");
-        saveSequence(sequence, fnm+".jts");
-      } 
-      catch (Exception e) {
-        System.err.println(e);
       }
+      if (parser.getSongName().length() > 0)
+        System.out.println("Song name: " + parser.getSongName());
+      System.out.println("RingToneConverter: read " + parser.getNumNotes() +
+                                                     " notes successfully.");
+
+      String outFnm = baseName(fnm);
+      System.out.println("Writing sequence (as text) to " + outFnm + ".txt");
+      dumpSequence(sequence, outFnm+".txt");
+      System.out.println("Writing sequence to " + outFnm + ".jts");
+      saveSequence(sequence, outFnm+".jts");
     }
-  }  // end of main()
+    catch (Exception e) {
+      System.err.println(e);
+    }
+  }  // end of convertFile()
 
 
 
-  private static byte[] readInputStream(InputStream is) throws IOException
+  private static String baseName(String fnm)
+  // remove the file's extension (if it has one)
   {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[128];
-
-    while (true) {
-      int read = is.read(buffer);
-      if (read < 0)
-        break;
-      baos.write(buffer, 0, read);
-    }
-    is.close();
-    return baos.toByteArray();
-  }  // end of readInputStream()
+    int dotPos = fnm.lastIndexOf('.');
+    if (dotPos <= fnm.lastIndexOf(File.separatorChar) || dotPos <= fnm.lastIndexOf('/'))
+      return fnm;
+    return fnm.substring(0, dotPos);
+  }  // end of baseName()
+
 
 
+  // ------------------------- batch mode -------------------------------
 
-  private static byte[] buildSequence(byte[] data) throws Exception
+
+  private static void convertDir(String dirName, int numThreads)
+  /* Convert every ringtone file in dirName, with numThreads threads,
+     and report how long it took. */
   {
-    notes = new ArrayList<Integer>();
-    lengths = new ArrayList<Integer>();
-
-    if (!parseRTTTL(data))
-      throw new Exception("Not a supported ringtone text file");
-
-    if (tempo < 20 || tempo > 508)
-      throw new Exception("tempo is out of range");
-
-    byte[] sequence = new byte[notes.size()*2 + 4];
-    sequence[0] = VERSION;
-    sequence[1] = 1;
-    sequence[2] = TEMPO;
-    sequence[3] = (byte) ((tempo >> 2) & 0x7f);
-    for (int i = 0; i < notes.size(); i++) {
-      sequence[2*i + 4] = (byte) (((Integer) notes.get(i)).intValue() & 0xff);
-      sequence[2*i + 5] = (byte) (((Integer) lengths.get(i)).intValue() & 0x7f);
+    File[] files = new File(dirName).listFiles( new FilenameFilter() {
+      public boolean accept(File dir, String name)
+      {  String lcName = name.toLowerCase();
+         return lcName.endsWith(".rtttl") || lcName.endsWith(".rtx");  }
+    });
+    if (files == null) {
+      System.out.println("Could not read the directory " + dirName);
+      return;
+    }
+    Arrays.sort(files);   // so errors are reported in a fixed order
+    System.out.println("Converting " + files.length + " files in " + dirName +
+                                             " with " + numThreads + " threads");
+
+    long startTime = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>(files.length);
+    for (int i = 0; i < files.length; i++) {
+      final File file = files[i];
+      results.add( pool.submit( new Callable<Integer>() {
+        public Integer call() throws Exception
+        {  return convert(file);  }
+      }));
     }
 
-    return sequence;
-  }  // end of buildSequence()
+    int numConverted = 0;
+    long numNotes = 0;
+    for (int i = 0; i < files.length; i++) {
+      try {
+        numNotes += results.get(i).get();
+        numConverted++;
+      }
+      catch (ExecutionException e)
+      {  System.out.println(files[i].getName() + ": " + e.getCause());  }
+      catch (InterruptedException e)
+      {  break;  }
+    }
+    pool.shutdownNow();
 
+    long time = (System.nanoTime() - startTime)/1000000L;   // in ms
+    System.out.println("Converted " + numConverted + " of " + files.length +
+                       " files (" + numNotes + " notes) in " + time + " ms");
+    if (time > 0)
+      System.out.println("  " + (numConverted*1000L)/time + " files/sec");
+  }  // end of convertDir()
 
 
 
-  private static boolean parseRTTTL(byte[] data)
-  // Parse a ringtone sequence in the RTTTL format
+  private static int convert(File file) throws Exception
+  // convert a file without printing anything; return the number of notes
   {
-    boolean result = true;
+    InputStream in = new FileInputStream(file);   // RTTTLParser does its own buffering
+    RTTTLParser parser = new RTTTLParser(in);
+    byte[] sequence;
     try {
-      tempo = 63;             // default tempo is 63
-      int defDuration = 4;    // default duration is a quarter note
-      int defScale = 6;       // default octave is 6
-
-	 // start with Name, followed by colon :
-	 String songName = readString(data, ":");
-	 if (songName.length() > 0)
-	   System.out.println("Song name: " + songName);
-
-      // read defaults
-      do {
-        String def = readString(data, ",:");
-        if (def != "") {
-          if (def.startsWith("D="))
-            defDuration = Integer.parseInt(def.substring(2));
-          else if (def.startsWith("O="))
-            defScale = Integer.parseInt(def.substring(2));
-          else if (def.startsWith("B="))
-            tempo = Integer.parseInt(def.substring(2));
-          else
-            throw new Exception("Unknown default \"" + def + "\"");
-        }
-        else {
-          if (lastSeparator != ':')
-            throw new Exception("':' excepted");
-          break;
-        }
-      } while (lastSeparator == ',');
-
-      // read note commands
-      StringBuffer noteCommand = new StringBuffer();
-      while (lastSeparator != 'E') {
-        noteCommand.setLength(0);
-        noteCommand.append(readString(data, ","));
-        if (noteCommand.length() == 0)
-          break;
-        int duration = tableLookup(noteCommand, durationStrings, durationValues, defDuration);
-        int note = tableLookup(noteCommand, noteStrings, noteValues, -1);
-
-        int dotCount = 0;    // dotted duration ?
-        // dot may appear before or after scale
-        if (noteCommand.length() > 0 && noteCommand.charAt(0) == '.') {
-          dotCount = 1;
-          noteCommand.deleteCharAt(0);
-        }
+      sequence = parser.parse();
+    }
+    finally {
+      in.close();
+    }
+    String outFnm = baseName(file.getPath());
+    writeText(sequence, outFnm+".txt");
+    writeJTS(sequence, outFnm+".jts");
+    return parser.getNumNotes();
+  }  // end of convert()
 
-        if (note >= 0) {    // octave
-          int scale = tableLookup(noteCommand, scaleStrings, scaleValues, defScale);
-          note = C4 + ((scale - 4) * 12) + note;
-        }
-        else {  // pause?
-          if (noteCommand.charAt(0) == 'P') {
-            note = SILENCE;
-            noteCommand.deleteCharAt(0);
-          }
-          else
-            throw new Exception("Unexpected note command: '" + noteCommand.toString() + "'");
-        }
 
-        // dot may appear before or after scale
-        if (noteCommand.length() > 0 && noteCommand.charAt(0) == '.') {
-          dotCount = 1;
-          noteCommand.deleteCharAt(0);
-        }
 
-        if (noteCommand.length() > 0)
-          throw new Exception("Unexpected note command: '" + noteCommand.toString() + "'");
-        addNote(note, duration, dotCount);
-      }
+  // ------------------------- output -------------------------------
+
 
-      System.out.println("RingToneConverter: read " + notes.size() + " notes successfully.");
+  private static void dumpSequence(byte[] sequence, String outFnm)
+  // Dump the sequence as hexadecimal numbers to outFnm txt file.
+  {
+    try {
+      writeText(sequence, outFnm);
     }
     catch (Exception e) {
       System.out.println(e);
-      result = false;
     }
-    return result;
-  }  // end of parseRTTTL()
+  }  // end of dumpSequence()
 
 
 
-  private static String readString(byte[] data, String separators)
+  private static void writeText(byte[] sequence, String outFnm) throws IOException
+  // write the sequence as hex, 8 bytes to a line, in a single write
   {
-    int start = readPos;
-    lastSeparator = 'E'; // end of file
-    boolean hasWhiteSpace = false;
-
-    while (lastSeparator == 'E' && readPos < data.length) {
-      char input = (char) data[readPos++];
-      if (input <= 32)
-        hasWhiteSpace = true;
-      for (int i = 0; i < separators.length(); i++) {
-        if (input == separators.charAt(i)) {
-          // separator found
-          lastSeparator = input;
-          break;
-        }
-      }
+    StringBuilder sb = new StringBuilder(sequence.length*3 + (sequence.length/8 + 1)*LINE_SEP.length());
+    for (int i = 0; i < sequence.length; i++) {
+      sb.append( hexChars[(sequence[i] & 0xF0) >> 4] );
+      sb.append( hexChars[sequence[i] & 0xF] );
+      sb.append(' ');
+      if (i%8 == 7)
+        sb.append(LINE_SEP);
     }
-    int end = readPos - 1;
-    if (lastSeparator != 'E')  // don't return separator
-      end--;
-
-    String result = "";
-    if (start <= end) {
-      result = new String(data, start, end - start + 1);
-      if (hasWhiteSpace) {    // trim result
-        StringBuffer sbResult = new StringBuffer(result);
-        int i = 0;
-        while (i < sbResult.length()) {
-          if (sbResult.charAt(i) <= 32)
-            sbResult.deleteCharAt(i);
-          else
-            i++;
-        }
-        result = sbResult.toString();
-      }
-      result = result.toUpperCase();
-    }
-    System.out.println("Returning '" + result + "'  with lastSep='" + lastSeparator + "'");
-    return result;
-  }  // end of readString()
-
-
+    sb.append(LINE_SEP);
 
-  private static int tableLookup(StringBuffer command, String[] strings, int[] values, int defValue)
-  {
-    String sCmd = command.toString();
-    int result = defValue;
-    for (int i = 0; i < strings.length; i++) {
-      if (sCmd.startsWith(strings[i])) {
-        command.delete(0, strings[i].length());
-        result = values[i];
-        break;
-      }
+    FileOutputStream fos = new FileOutputStream(outFnm);
+    try {
+      fos.write( sb.toString().getBytes() );
     }
-    return result;
-  }  // end of tableLookup()
-
-
-
-  private static void addNote(int note, int duration, int dotCount)
-  /* add a note to the notes and lengths lists.
-        note - 0-128, as defined in ToneControl
-        duration - the divider of a full note. E.g. 4 stands for a quarter note
-        dotCount - if 1, then the duration is increased by half its length, 
-                   if 2 by 3/4 of its length, etc.
-   */
-  {
-    // int length = (60000 * 4) /(duration * tempo);
-    int length = 64 / duration;
-    int add = 0;
-    int factor = 2;
-
-    while(dotCount > 0) {
-      add += length / factor;
-      factor *= 2;
-      dotCount--;
+    finally {
+      fos.close();
     }
-    length += add;
-    if (length > 127)
-      length = 127;
+  }  // end of writeText()
 
-    notes.add(note);
-    lengths.add(length);
-  }  // end of addNote()
 
 
-
-  private static void dumpSequence(byte[] sequence, String outFnm)
-  // Dump the sequence as hexadecimal numbers to outFnm txt file.
+  private static void saveSequence(byte[] sequence, String outFnm)
+  // Dump the sequence binary to outFnm jts file.
   {
-    System.out.println("Writing sequence (as text) to " + outFnm);
     try {
-      PrintStream ps = new PrintStream( new FileOutputStream(outFnm) );
-
-      for (int i = 0; i < sequence.length; i++) {
-        ps.print( hexChars[(sequence[i] & 0xF0) >> 4] + 
-                  hexChars[sequence[i] & 0xF]  + " ");
-        if (i%8 == 7)
-          ps.println();
-      }
-      ps.println();
-      ps.close();
+      writeJTS(sequence, outFnm);
     }
     catch (Exception e) {
       System.out.println(e);
     }
-  }  // end of dumpSequence()
+  }  // end of saveSequence()
 
 
 
-  private static void saveSequence(byte[] sequence, String outFnm)
-  // Dump the sequence binary to outFnm jts file.
+  private static void writeJTS(byte[] sequence, String outFnm) throws IOException
   {
-    System.out.println("Writing sequence to " + outFnm);
+    FileOutputStream fos = new FileOutputStream(outFnm);
     try {
-      ByteArrayOutputStream bos = new ByteArrayOutputStream();
-      bos.write(sequence, 0, sequence.length);
-
-      FileOutputStream fos = new FileOutputStream( new File(outFnm));
-      bos.writeTo(fos);
-      bos.close();
-      fos.close();  
-    } 
-    catch (Exception e) {
-      System.out.println(e);
+      fos.write(sequence);
     }
-  }  // end of saveSequence()
+    finally {
+      fos.close();
+    }
+  }  // end of writeJTS()
 
 }  // end of RingToneConverter class
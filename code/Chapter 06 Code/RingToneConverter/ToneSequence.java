@@ -0,0 +1,81 @@
+
+// ToneSequence.java
+// Andrew Davison, ad@fivedots.coe.psu.ac.th, December 2009
+
+/* A growable byte[] holding an MMAPI tone sequence (the JTS format):
+
+       VERSION 1 TEMPO <tempo/4> <note> <length> <note> <length> ...
+
+   The notes are stored directly as bytes as they are added, so
+   there is no boxing into lists. The array doubles in size when
+   it is full, and toByteArray() returns a copy of the used part.
+*/
+
+
+public class ToneSequence
+{
+  // constants taken from MMAPI's ToneControl class
+  public static final byte VERSION = -2;
+  public static final byte TEMPO = -3;
+
+  public static final int HEADER_SIZE = 4;   // VERSION 1 TEMPO <tempo>
+
+  private byte[] seq;
+  private int seqLen = HEADER_SIZE;    // the number of bytes used
+
+
+  public ToneSequence()
+  {  this(64);  }
+
+
+  public ToneSequence(int numNotes)
+  {
+    seq = new byte[HEADER_SIZE + 2*Math.max(numNotes, 1)];
+    seq[0] = VERSION;
+    seq[1] = 1;
+    seq[2] = TEMPO;
+    setTempo(63);
+  }  // end of ToneSequence()
+
+
+
+  public void setTempo(int tempo)
+  // the tempo is in beats per minute, stored divided by 4
+  {  seq[3] = (byte) ((tempo >> 2) & 0x7f);  }
+
+
+
+  public void addNote(int note, int length)
+  /* note - 0-127 as defined in ToneControl, or -1 for silence
+     length - in 1/64ths of a whole note
+  */
+  {
+    if (seqLen + 2 > seq.length) {   // full, so double the size
+      byte[] newSeq = new byte[seq.length*2];
+      System.arraycopy(seq, 0, newSeq, 0, seqLen);
+      seq = newSeq;
+    }
+    seq[seqLen++] = (byte) (note & 0xff);
+    seq[seqLen++] = (byte) (length & 0x7f);
+  }  // end of addNote()
+
+
+
+  public int getNumNotes()
+  {  return (seqLen - HEADER_SIZE)/2;  }
+
+
+  public void clear()
+  // remove the notes, keeping the array for reuse
+  {  seqLen = HEADER_SIZE;  }
+
+
+
+  public byte[] toByteArray()
+  {
+    byte[] result = new byte[seqLen];
+    System.arraycopy(seq, 0, result, 0, seqLen);
+    return result;
+  }  // end of toByteArray()
+
+}  // end of ToneSequence class
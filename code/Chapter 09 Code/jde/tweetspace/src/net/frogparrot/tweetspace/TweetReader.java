@@ -3,10 +3,10 @@ package net.frogparrot.tweetspace;
 import java.io.*;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.Vector;
 import javax.microedition.io.HttpConnection;
 
-import org.json.me.JSONArray;
-import org.json.me.JSONObject;
+import org.json.me.JSONReader;
 
 import com.versatilemonkey.net.*;
 
@@ -132,47 +132,135 @@ public class TweetReader extends TimerTask {
         buff.append(mySinceId);
       }
       String url = buff.toString();
-      // read the recent tweets from the internet:
-      String responseData = httpRequest(url, null, null);
-      // parse the tweet data and update the opponent ships accordingly:
-      parseJson(responseData);
+      // read the recent tweets from the internet, and update 
+      // the opponent ships accordingly:
+      readTweets(url);
     } catch(Exception e) {
       Main.postException(e);
     }
     //Main.setMessage("* done: TweetReader.run * ");
   }
     
+  /**
+   * Send the request for the tweets, and parse the response
+   * as it arrives, without reading the whole body first.
+   * @param url The Twitter list URL
+   */
+  void readTweets(String url) {
+    HttpConnection connection = null;
+    try {
+      HttpConnectionFactory factory = new HttpConnectionFactory(url,
+          HttpConnectionFactory.TRANSPORTS_ANY);
+      while(true) {
+        try {
+          connection = factory.getNextConnection();
+          try {
+            connection.setRequestMethod("GET");
+            int responseCode = connection.getResponseCode();
+            //Main.setMessage("response code: " + responseCode);
+            if(responseCode == 200) {
+              InputStream is = connection.openInputStream();
+              try {
+                parseJson(is);
+              } finally {
+                is.close();
+              }
+              break;
+            }
+          } catch(IOException ioe) {
+            //Log the error:
+            Main.postException(ioe);
+          }
+        } catch(NoMoreTransportsException e) {
+          //Log the error:
+          Main.postException(e);
+          break;
+        } finally {
+          try {
+            connection.close();
+          } catch(Exception e) {}
+        }
+      }
+    } catch(Exception e) {
+      Main.postException(e);
+    }
+  }
+
   /**
    * Parse and store the remote players' data and messages.
-   * @param jsonStr The data block returned by Twitter
+   * The tweets are read one at a time with a JSONReader,
+   * keeping only the id, the text, and the user's screen 
+   * name, so the whole response is never held in memory.
+   * @param is The data stream returned by Twitter
    */
-  void parseJson(String jsonStr) {
+  void parseJson(InputStream is) {
     try {
-      JSONArray results = new JSONArray(jsonStr);
-      //Main.setMessage("PARSED results: " + results);
-      //Main.setMessage("* results length * " + results.length());
-      int length = results.length();
-      // parse them in reverse order to show the most recent 
-      // message from each opponent:
-      for(int i = 1; i < length + 1; i++) {
-        //Main.setMessage("JSON Array element #" + (length - i) + ": " + results.getJSONObject(length - i));
-        JSONObject tweet = results.getJSONObject(length - i);
-        mySinceId = tweet.getLong("id");
-        //Main.setMessage("id: " + mySinceId);
-        String text = tweet.getString("text");
-        //Main.setMessage("text: " + text);
-        JSONObject user = tweet.getJSONObject("user");
-        String name = user.getString("screen_name");
-        //Main.setMessage("calling setAlienShip: " + (length - i));
-        if(!name.equals(Main.getInstance().getLoginScreen().getUsername())) {
-          mySpaceLayer.setAlienShip(name, text);
-          //Main.setMessage("returned from setAlienShip: " + (length - i));
+      // The tweets arrive most recent first, but they are 
+      // applied in reverse order to show the most recent 
+      // message from each opponent, so the names and texts
+      // are saved until the end of the list:
+      Vector names = new Vector();
+      Vector texts = new Vector();
+      long sinceId = mySinceId;
+      String username = Main.getInstance().getLoginScreen().getUsername();
+      JSONReader reader = new JSONReader(is);
+      reader.beginArray();
+      for(int i = 0; reader.hasNext(); i++) {
+        long id = 0;
+        String text = null;
+        String name = null;
+        reader.beginObject();
+        while(reader.hasNext()) {
+          String key = reader.nextName();
+          if(key.equals("id")) {
+            id = reader.nextLong();
+          } else if(key.equals("text")) {
+            text = reader.nextString();
+          } else if(key.equals("user")) {
+            name = readScreenName(reader);
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        //Main.setMessage("JSON Array element #" + i + ": " + id);
+        if(i == 0) {
+          sinceId = id;
         }
+        if((text != null) && (name != null) && (!name.equals(username))) {
+          names.addElement(name);
+          texts.addElement(text);
+        }
+      }
+      reader.endArray();
+      mySinceId = sinceId;
+      //Main.setMessage("id: " + mySinceId);
+      for(int i = names.size() - 1; i >= 0; i--) {
+        mySpaceLayer.setAlienShip((String)names.elementAt(i), 
+            (String)texts.elementAt(i));
       }
     } catch(Exception e) {
       //Main.setMessage("exception caught by parseJson");
       Main.postException(e);
     }
   }
+
+  /**
+   * Read a tweet's user object, keeping only the screen name.
+   * @return the screen name, or null if there isn't one
+   */
+  private String readScreenName(JSONReader reader) throws Exception {
+    String name = null;
+    reader.beginObject();
+    while(reader.hasNext()) {
+      if(reader.nextName().equals("screen_name")) {
+        name = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return name;
+  }
    
 } 
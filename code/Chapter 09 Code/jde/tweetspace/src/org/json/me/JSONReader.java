@@ -0,0 +1,659 @@
+package org.json.me;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/**
+ * A JSONReader reads a JSON text from a stream one token at a time, instead
+ * of building a tree of JSONObjects and JSONArrays like a JSONTokener. The
+ * text is read through a small character buffer, so the memory used does not
+ * grow with the length of the text; only the names and values that the caller
+ * asks for are turned into Strings.
+ * <p>
+ * The caller walks the text with <code>beginArray</code>,
+ * <code>beginObject</code>, <code>nextName</code>, <code>nextString</code>
+ * and so on, using <code>nextToken</code> to see what comes next and
+ * <code>skipValue</code> to skip whole values that it doesn't need:
+ * <pre>
+ * reader.beginArray();
+ * while (reader.hasNext()) {
+ *     reader.beginObject();
+ *     while (reader.hasNext()) {
+ *         if (reader.nextName().equals("text")) {
+ *             String text = reader.nextString();
+ *         } else {
+ *             reader.skipValue();
+ *         }
+ *     }
+ *     reader.endObject();
+ * }
+ * reader.endArray();
+ * </pre>
+ * The reader accepts standard JSON text, and also strings in single quotes.
+ * Whitespace between tokens is skipped.
+ * @author JSON.org
+ * @version 1
+ */
+public class JSONReader {
+
+    /**
+     * The kinds of token returned by nextToken().
+     */
+    public static final int BEGIN_ARRAY = 1;
+    public static final int END_ARRAY = 2;
+    public static final int BEGIN_OBJECT = 3;
+    public static final int END_OBJECT = 4;
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int BOOLEAN = 8;
+    public static final int NULL = 9;
+    public static final int END_DOCUMENT = 10;
+
+    /**
+     * No token has been read ahead.
+     */
+    private static final int NONE = 0;
+
+    /**
+     * Where the reader is in each enclosing array or object.
+     */
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    /**
+     * The size of the character buffer.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+
+    /**
+     * The source of the text.
+     */
+    private Reader myReader;
+
+
+    /**
+     * The buffered characters, the index of the next one, and the
+     * number of characters in the buffer.
+     */
+    private char[] myBuffer = new char[BUFFER_SIZE];
+    private int myPos;
+    private int myLimit;
+
+
+    /**
+     * The number of characters read before the ones in the buffer,
+     * for error messages.
+     */
+    private int myOffset;
+
+
+    /**
+     * The scopes (arrays and objects) that the reader is in, innermost last.
+     */
+    private int[] myStack = new int[16];
+    private int myStackSize;
+
+
+    /**
+     * The token that has been read ahead by nextToken(), or NONE.
+     */
+    private int myPeeked = NONE;
+
+
+    /**
+     * The quote character of a peeked NAME or STRING, whose characters
+     * have not been read yet.
+     */
+    private char myQuote;
+
+
+    /**
+     * The text of a peeked NUMBER or BOOLEAN, and the characters of
+     * names and strings as they are read. It is reused for every token.
+     */
+    private StringBuffer myText = new StringBuffer();
+
+
+    /**
+     * Construct a JSONReader that reads UTF-8 text from a stream.
+     *
+     * @param in    The stream, such as an HTTP response body.
+     * @throws JSONException If UTF-8 is not supported.
+     */
+    public JSONReader(InputStream in) throws JSONException {
+        try {
+            this.myReader = new InputStreamReader(in, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new JSONException(e);
+        }
+        this.myStack[this.myStackSize++] = EMPTY_DOCUMENT;
+    }
+
+
+    /**
+     * Construct a JSONReader that reads from a Reader.
+     *
+     * @param reader    The source of the text.
+     */
+    public JSONReader(Reader reader) {
+        this.myReader = reader;
+        this.myStack[this.myStackSize++] = EMPTY_DOCUMENT;
+    }
+
+
+    /**
+     * Consume the next token, which must be the start of an array.
+     * @throws JSONException If the next token is not '['.
+     */
+    public void beginArray() throws JSONException {
+        expect(BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+
+    /**
+     * Consume the next token, which must be the end of the current array.
+     * @throws JSONException If the next token is not ']'.
+     */
+    public void endArray() throws JSONException {
+        expect(END_ARRAY);
+        this.myStackSize -= 1;
+    }
+
+
+    /**
+     * Consume the next token, which must be the start of an object.
+     * @throws JSONException If the next token is not '{'.
+     */
+    public void beginObject() throws JSONException {
+        expect(BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+
+    /**
+     * Consume the next token, which must be the end of the current object.
+     * @throws JSONException If the next token is not '}'.
+     */
+    public void endObject() throws JSONException {
+        expect(END_OBJECT);
+        this.myStackSize -= 1;
+    }
+
+
+    /**
+     * Determine if the current array or object has another element.
+     * @return true if the next token is not the end of an array, an
+     *  object, or the text.
+     * @throws JSONException If syntax error.
+     */
+    public boolean hasNext() throws JSONException {
+        int token = nextToken();
+        return token != END_ARRAY && token != END_OBJECT &&
+                token != END_DOCUMENT;
+    }
+
+
+    /**
+     * Get the kind of the next token, without consuming it.
+     * @return One of BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT,
+     *  NAME, STRING, NUMBER, BOOLEAN, NULL or END_DOCUMENT.
+     * @throws JSONException If syntax error.
+     */
+    public int nextToken() throws JSONException {
+        if (this.myPeeked == NONE) {
+            this.myPeeked = readToken();
+        }
+        return this.myPeeked;
+    }
+
+
+    /**
+     * Consume the next token, which must be the name of an object member.
+     * @return The name.
+     * @throws JSONException If the next token is not a name.
+     */
+    public String nextName() throws JSONException {
+        expect(NAME);
+        readQuoted(true);
+        return this.myText.toString();
+    }
+
+
+    /**
+     * Consume the next token, which must be a string or a number.
+     * @return The string, or the text of the number.
+     * @throws JSONException If the next token is not a string or number.
+     */
+    public String nextString() throws JSONException {
+        int token = nextToken();
+        if (token == STRING) {
+            this.myPeeked = NONE;
+            readQuoted(true);
+        } else if (token == NUMBER) {
+            this.myPeeked = NONE;
+        } else {
+            throw syntaxError("Expected a string");
+        }
+        return this.myText.toString();
+    }
+
+
+    /**
+     * Consume the next token, which must be a number (or a string
+     * holding a number), and convert it to a long.
+     * @return The value, truncated if it is not a whole number.
+     * @throws JSONException If the next token is not a number.
+     */
+    public long nextLong() throws JSONException {
+        String s = nextString();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            try {
+                return (long)Double.parseDouble(s);
+            } catch (NumberFormatException f) {
+                throw syntaxError("Expected a number");
+            }
+        }
+    }
+
+
+    /**
+     * Consume the next token, which must be true or false.
+     * @return The value.
+     * @throws JSONException If the next token is not a boolean.
+     */
+    public boolean nextBoolean() throws JSONException {
+        expect(BOOLEAN);
+        return this.myText.charAt(0) == 't' || this.myText.charAt(0) == 'T';
+    }
+
+
+    /**
+     * Consume the next token, which must be null.
+     * @throws JSONException If the next token is not null.
+     */
+    public void nextNull() throws JSONException {
+        expect(NULL);
+    }
+
+
+    /**
+     * Skip the next value, including all of the members or elements of an
+     * object or array. If the next token is a name, only the name is skipped.
+     * No Strings are made for the skipped text.
+     * @throws JSONException If syntax error, or if there is no value to skip.
+     */
+    public void skipValue() throws JSONException {
+        int depth = 0;
+        do {
+            switch (nextToken()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                depth += 1;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                depth += 1;
+                break;
+            case END_ARRAY:
+                if (depth == 0) {
+                    throw syntaxError("No value to skip");
+                }
+                endArray();
+                depth -= 1;
+                break;
+            case END_OBJECT:
+                if (depth == 0) {
+                    throw syntaxError("No value to skip");
+                }
+                endObject();
+                depth -= 1;
+                break;
+            case NAME:
+            case STRING:
+                this.myPeeked = NONE;
+                readQuoted(false);
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("No value to skip");
+            default:
+                // numbers, booleans and null were read by nextToken()
+                this.myPeeked = NONE;
+            }
+        } while (depth != 0);
+    }
+
+
+    /**
+     * Close the underlying reader.
+     * @throws JSONException If the reader cannot be closed.
+     */
+    public void close() throws JSONException {
+        try {
+            this.myReader.close();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+
+    /**
+     * Make a JSONException to signal a syntax error.
+     *
+     * @param message The error message.
+     * @return  A JSONException object, suitable for throwing
+     */
+    public JSONException syntaxError(String message) {
+        return new JSONException(message + toString());
+    }
+
+
+    /**
+     * Make a printable string of this JSONReader.
+     *
+     * @return " at character [index]"
+     */
+    public String toString() {
+        return " at character " + (this.myOffset + this.myPos);
+    }
+
+
+    /**
+     * Consume the next token, checking its kind.
+     */
+    private void expect(int token) throws JSONException {
+        if (nextToken() != token) {
+            throw syntaxError("Unexpected token " + this.myPeeked);
+        }
+        this.myPeeked = NONE;
+    }
+
+
+    /**
+     * Enter an array or object.
+     */
+    private void push(int scope) {
+        if (this.myStackSize == this.myStack.length) {
+            int[] newStack = new int[this.myStackSize * 2];
+            System.arraycopy(this.myStack, 0, newStack, 0, this.myStackSize);
+            this.myStack = newStack;
+        }
+        this.myStack[this.myStackSize++] = scope;
+    }
+
+
+    /**
+     * Read the punctuation up to the next token, and work out its kind.
+     * The characters of a name or string are left to be read later.
+     */
+    private int readToken() throws JSONException {
+        int scope = this.myStack[this.myStackSize - 1];
+        char c;
+        switch (scope) {
+        case EMPTY_ARRAY:
+            this.myStack[this.myStackSize - 1] = NONEMPTY_ARRAY;
+            break;
+        case NONEMPTY_ARRAY:
+            c = nextClean();
+            if (c == ']') {
+                return END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected a ',' or ']'");
+            }
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            this.myStack[this.myStackSize - 1] = DANGLING_NAME;
+            c = nextClean();
+            if (scope == NONEMPTY_OBJECT) {
+                if (c == '}') {
+                    return END_OBJECT;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected a ',' or '}'");
+                }
+                c = nextClean();
+            } else if (c == '}') {
+                return END_OBJECT;
+            }
+            if (c != '"' && c != '\'') {
+                throw syntaxError("Expected a name");
+            }
+            this.myQuote = c;
+            return NAME;
+        case DANGLING_NAME:
+            this.myStack[this.myStackSize - 1] = NONEMPTY_OBJECT;
+            if (nextClean() != ':') {
+                throw syntaxError("Expected a ':' after a name");
+            }
+            break;
+        case EMPTY_DOCUMENT:
+            this.myStack[this.myStackSize - 1] = NONEMPTY_DOCUMENT;
+            break;
+        default:    // NONEMPTY_DOCUMENT
+            if (nextClean() != 0) {
+                throw syntaxError("Expected the end of the text");
+            }
+            return END_DOCUMENT;
+        }
+
+        // now a value:
+        c = nextClean();
+        switch (c) {
+        case '[':
+            return BEGIN_ARRAY;
+        case '{':
+            return BEGIN_OBJECT;
+        case '"':
+        case '\'':
+            this.myQuote = c;
+            return STRING;
+        case ']':
+            if (scope == EMPTY_ARRAY) {
+                return END_ARRAY;
+            }
+            break;
+        case 0:
+            throw syntaxError("Unexpected end of the text");
+        }
+        return readLiteral(c);
+    }
+
+
+    /**
+     * Read an unquoted value (a number, true, false or null) into myText.
+     */
+    private int readLiteral(char c) throws JSONException {
+        this.myText.setLength(0);
+        while (c > ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            this.myText.append(c);
+            c = next();
+        }
+        if (c != 0) {
+            this.myPos -= 1;    // back up to the delimiter
+        }
+        if (this.myText.length() == 0) {
+            throw syntaxError("Missing value");
+        }
+        String s = this.myText.toString();
+        if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false")) {
+            return BOOLEAN;
+        }
+        if (s.equalsIgnoreCase("null")) {
+            return NULL;
+        }
+        char b = s.charAt(0);
+        if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+            return NUMBER;
+        }
+        throw syntaxError("Unexpected value '" + s + "'");
+    }
+
+
+    /**
+     * Read the characters of a name or string, up to the closing quote.
+     * Backslash processing is done as in JSONTokener.nextString().
+     * @param keep  true to store the characters in myText, false to skip them.
+     */
+    private void readQuoted(boolean keep) throws JSONException {
+        if (keep) {
+            this.myText.setLength(0);
+        }
+        for (;;) {
+            // copy the plain characters straight from the buffer:
+            int start = this.myPos;
+            while (this.myPos < this.myLimit) {
+                char c = this.myBuffer[this.myPos];
+                if (c == this.myQuote || c == '\\' || c == '\n' || c == '\r') {
+                    break;
+                }
+                this.myPos += 1;
+            }
+            if (keep && this.myPos > start) {
+                this.myText.append(this.myBuffer, start, this.myPos - start);
+            }
+            if (this.myPos == this.myLimit) {
+                if (!fill()) {
+                    throw syntaxError("Unterminated string");
+                }
+                continue;
+            }
+
+            char c = this.myBuffer[this.myPos++];
+            if (c == this.myQuote) {
+                return;
+            }
+            if (c != '\\') {
+                throw syntaxError("Unterminated string");
+            }
+            c = next();
+            switch (c) {
+            case 'b':
+                c = '\b';
+                break;
+            case 't':
+                c = '\t';
+                break;
+            case 'n':
+                c = '\n';
+                break;
+            case 'f':
+                c = '\f';
+                break;
+            case 'r':
+                c = '\r';
+                break;
+            case 'u':
+                c = (char)nextHex(4);
+                break;
+            case 'x':
+                c = (char)nextHex(2);
+                break;
+            case 0:
+                throw syntaxError("Unterminated string");
+            }
+            if (keep) {
+                this.myText.append(c);
+            }
+        }
+    }
+
+
+    /**
+     * Read a number of hex digits.
+     */
+    private int nextHex(int n) throws JSONException {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            int digit = JSONTokener.dehexchar(next());
+            if (digit < 0) {
+                throw syntaxError("Illegal escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+
+    /**
+     * Get the next char, skipping whitespace.
+     * @return  A character, or 0 if there are no more characters.
+     */
+    private char nextClean() throws JSONException {
+        for (;;) {
+            char c = next();
+            if (c == 0 || c > ' ') {
+                return c;
+            }
+        }
+    }
+
+
+    /**
+     * Get the next character, filling the buffer if it is empty.
+     * @return The next character, or 0 at the end of the text.
+     */
+    private char next() throws JSONException {
+        if (this.myPos == this.myLimit && !fill()) {
+            return 0;
+        }
+        return this.myBuffer[this.myPos++];
+    }
+
+
+    /**
+     * Refill the buffer from the reader.
+     * @return false if the end of the text has been reached.
+     */
+    private boolean fill() throws JSONException {
+        this.myOffset += this.myLimit;
+        this.myPos = 0;
+        this.myLimit = 0;
+        try {
+            int n = this.myReader.read(this.myBuffer, 0, this.myBuffer.length);
+            if (n > 0) {
+                this.myLimit = n;
+            }
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+        return this.myLimit > 0;
+    }
+}
@@ -8,6 +8,15 @@
 
    If the ID matches, a map will be sent back or an error message.
 
+   The "hi" command asks for the map's tile information rather than
+   the map itself. If the server sends back the map's size and tile
+   size, then only the map tiles visible on the screen are downloaded,
+   using "tile" commands, and more tiles are downloaded as the user
+   moves around. An older server will send back the whole map instead.
+   Tiles more than a tile's width outside the screen are dropped when
+   new ones arrive, so the memory used depends on the screen size, not
+   on how much of the map has been visited.
+
    Display the map across the entire screen, and allow the user to
    employ the arrow keys to move around. The code assumes the image is
    bigger than the screen.
@@ -15,7 +24,10 @@
    A LocUpdater thread is started which will periodically send GPS 
    info to the server, and receive back the locations of all the
    players. This information is passed to ImageScreen via the
-   updateLocs() method and stored in a PlayerLoc[] array.
+   updateLocs() method and stored in a PlayerLoc[] array, indexed
+   by each player's index in the server's list of players. The array
+   starts with room for one fox and four hounds, and grows when a
+   player with a larger index is reported.
 
    When the map is drawn, the player locations are drawn on top of
    it.
@@ -44,15 +56,24 @@ public class ImageScreen extends MainScreen
   private static final String SERVER = "http://FOX_HOUNDS.COM/FoxHoundsServlet";
             /*   *** CHANGE THIS URL *** */
   
-  private static final int MAX_PLAYERS = 5;     // one fox, four hounds
+  private static final int INIT_PLAYERS = 5;     // one fox, four hounds
 
   private static int STEP = 8;    // step increment for moving the image
 
+  private static final int TILE_MARGIN = 1;    // tile columns/rows kept beyond each screen edge
+
 
   // map image
   private Bitmap mapIm = null;
   private int imWidth, imHeight;
   private boolean mapLoaded = false;
+
+  // map tiles, used instead of mapIm if the server supports them
+  private boolean useTiles = false;
+  private int tileSize, tileZoom;    // the tiles are at the map's full-size zoom level
+  private int numTileCols, numTileRows;
+  private Hashtable tiles = new Hashtable();   // "col,row" --> tile Bitmap
+  private boolean isLoadingTiles = false;
   
   // drawing coords
   private int screenWidth, screenHeight;
@@ -60,6 +81,7 @@ public class ImageScreen extends MainScreen
 
   private String uid;
   private PlayerLoc[] playerLocs;    // player location details
+  private Object locsLock = new Object();   // guards playerLocs[], which may be replaced
 
   private LocUpdater locUpdater = null;   // thread for obtaining location info
 
@@ -76,7 +98,7 @@ public class ImageScreen extends MainScreen
     screenHeight = sh;
     uid = id;
     imScr = this;
-    playerLocs = new PlayerLoc[MAX_PLAYERS];
+    playerLocs = new PlayerLoc[INIT_PLAYERS];
     
     endFont = Font.getDefault().derive(Font.BOLD, 30);
 
@@ -109,30 +131,41 @@ public class ImageScreen extends MainScreen
 
 
 
-  public void updateLocs(String playerLocsStr)
-  /* called by LocUpdater thread. The method splits the 
-     location string into a substring for each player, 
-     and updates the playerLocs[] array */
+  public void updateLocs(byte[] reply)
+  /* called by LocUpdater thread. The binary "loc" reply holds a
+     record for each player that has changed, which replaces the
+     player's entry in the playerLocs[] array */
   {
-    Vector lines = Utils.split(playerLocsStr, "\n");   // split according to new lines
-    int numPlayers = 0;
-    for(int i=0; i < lines.size(); i++) {
-      if (numPlayers == MAX_PLAYERS)
-        break;
-      if (lines.elementAt(i) == null)     // ignore empty lines
-        continue;
-      String line = ((String) lines.elementAt(i)).trim();
-      if (line.equals(""))                // ignore blank lines
-        continue;
-      synchronized(playerLocs) {      // prevent playerLocs[] being accessed while it is being changed
-        playerLocs[numPlayers] = new PlayerLoc(line);
-        numPlayers++;
+    int numRecords = LocCodec.getLocsCount(reply);
+    synchronized(locsLock) {      // prevent playerLocs[] being accessed while it is being changed
+      for(int i=0; i < numRecords; i++) {
+        int pos = LocCodec.recordPos(i);
+        if (pos + LocCodec.RECORD_LEN > reply.length)   // reply is too short
+          break;
+        int index = LocCodec.getRecordIndex(reply, pos);
+        if (index < 0)
+          continue;
+        if (index >= playerLocs.length)
+          growPlayerLocs(index+1);
+        playerLocs[index] = new PlayerLoc(reply, pos);
       }
     }
     invalidate();  // redraw
   }  // end of updateLocs()
 
 
+
+  private void growPlayerLocs(int minSize)
+  /* make playerLocs[] big enough to hold minSize players, at least
+     doubling its size so a large roster only needs a few copies */
+  {
+    int newSize = Math.max(playerLocs.length*2, minSize);
+    PlayerLoc[] newLocs = new PlayerLoc[newSize];
+    System.arraycopy(playerLocs, 0, newLocs, 0, playerLocs.length);
+    playerLocs = newLocs;
+  }  // end of growPlayerLocs()
+
+
   
   
   public void finishGame(String msg)
@@ -150,9 +183,14 @@ public class ImageScreen extends MainScreen
   // ------------------------- painting -----------------------------------
 
   private void drawImage(Bitmap im)
+  {  setMapSize(im.getWidth(), im.getHeight());  }
+
+
+
+  private void setMapSize(int w, int h)
   {
-    imWidth = im.getWidth(); 
-    imHeight = im.getHeight();
+    imWidth = w; 
+    imHeight = h;
      
     // center the image on the center of the screen
     xDraw = (screenWidth - imWidth)/2; 
@@ -161,7 +199,7 @@ public class ImageScreen extends MainScreen
     limitMovement();
     
     invalidate();        // draw the screen in its initial state
-  }  // end of drawImage()
+  }  // end of setMapSize()
 
 
 
@@ -196,13 +234,15 @@ public class ImageScreen extends MainScreen
     g.setColor(Color.BLACK);
     g.fillRect (0, 0, screenWidth, screenHeight);
 
-    if (mapIm != null)    // draw the map
+    if (useTiles && mapLoaded)   // draw the downloaded map tiles
+      drawTiles(g);
+    else if (mapIm != null)    // draw the map
       g.drawBitmap(0, 0, screenWidth, screenHeight, mapIm, -xDraw, -yDraw);
 
     // draw player locations
     if (mapLoaded)
-      synchronized(playerLocs) {
-        for(int i=0; i < MAX_PLAYERS; i++)
+      synchronized(locsLock) {
+        for(int i=0; i < playerLocs.length; i++)
           if (playerLocs[i] != null) {
             // System.out.println("paint(): painting player " + i);
             playerLocs[i].draw(g, screenWidth, screenHeight, xDraw, yDraw);
@@ -215,6 +255,30 @@ public class ImageScreen extends MainScreen
 
 
 
+  private void drawTiles(Graphics g)
+  // draw the visible tiles that have been downloaded
+  {
+    for (int row = firstTile(yDraw); row <= lastTile(yDraw, screenHeight, numTileRows); row++)
+      for (int col = firstTile(xDraw); col <= lastTile(xDraw, screenWidth, numTileCols); col++) {
+        Bitmap tile = (Bitmap) tiles.get(col + "," + row);
+        if (tile != null)
+          g.drawBitmap(xDraw + col*tileSize, yDraw + row*tileSize,
+                       tile.getWidth(), tile.getHeight(), tile, 0, 0);
+      }
+  }  // end of drawTiles()
+
+
+  private int firstTile(int drawPos)
+  // the first visible tile column or row
+  {  return (-drawPos)/tileSize;  }
+
+
+  private int lastTile(int drawPos, int screenLen, int numTiles)
+  // the last visible tile column or row
+  {  return Math.min((-drawPos + screenLen - 1)/tileSize, numTiles-1);  }
+
+
+
   private void showGameOver(Graphics g)
   // draw game-over message at center of panel, spread over two lines
   {
@@ -252,9 +316,15 @@ public class ImageScreen extends MainScreen
       public void run() 
       { 
         String hiReply = requestHi(uid);  
-        if (hiReply.equals("Map received")) {
+        if (hiReply.equals("Map received") || hiReply.equals("Tiles received")) {
           mapLoaded = true;
-          drawImage(mapIm);
+          if (useTiles) {
+            mapIm = null;    // remove title image
+            setMapSize(imWidth, imHeight);
+            loadVisibleTiles();
+          }
+          else
+            drawImage(mapIm);
           
           // start polling for locations
           locUpdater = new LocUpdater(uid, imScr);
@@ -274,7 +344,7 @@ public class ImageScreen extends MainScreen
   // send a "hi" message to the server, and process the reply
   {
     String hiReply = "Hi failed";
-    String hiDirect = SERVER + "?cmd=hi&uid=" + id + ";deviceside=true";
+    String hiDirect = SERVER + "?cmd=hi&uid=" + id + "&tiles=true;deviceside=true";
 
     HttpConnection conn = null; 
     InputStream inStream = null; 
@@ -287,8 +357,11 @@ public class ImageScreen extends MainScreen
           mapIm = downloadImage(inStream);
           hiReply = "Map received";
         }
-        else   // read text response
+        else {  // read text response
           hiReply = downloadReply(inStream);
+          if (hiReply.startsWith("TILES") && readTilesInfo(hiReply))
+            hiReply = "Tiles received";
+        }
       }
     } 
     catch (IOException ex)
@@ -307,6 +380,136 @@ public class ImageScreen extends MainScreen
 
 
 
+  private boolean readTilesInfo(String reply)
+  /* read the map size and tile details from a "hi" reply:
+        TILES map-width map-height tile-size max-zoom  */
+  {
+    Vector words = Utils.split(reply.trim(), " ");
+    if (words.size() != 5)
+      return false;
+    try {
+      imWidth = Integer.parseInt( (String)words.elementAt(1) );
+      imHeight = Integer.parseInt( (String)words.elementAt(2) );
+      tileSize = Integer.parseInt( (String)words.elementAt(3) );
+      tileZoom = Integer.parseInt( (String)words.elementAt(4) );
+    }
+    catch (NumberFormatException e) 
+    {  return false;  }
+
+    numTileCols = (imWidth + tileSize-1)/tileSize;
+    numTileRows = (imHeight + tileSize-1)/tileSize;
+    useTiles = true;
+    return true;
+  }  // end of readTilesInfo()
+
+
+
+  private void loadVisibleTiles()
+  /* download any visible tiles that aren't already loaded, in a 
+     separate thread. Only one loader thread runs at a time; it keeps
+     going until all the tiles visible at that time have been loaded */
+  {
+    synchronized(tiles) {
+      if (isLoadingTiles)
+        return;
+      isLoadingTiles = true;
+    }
+
+    Thread t = new Thread( new Runnable() { 
+      public void run() 
+      { 
+        String key;
+        while ((key = findMissingTile()) != null) {
+          int comma = key.indexOf(',');
+          int col = Integer.parseInt( key.substring(0, comma) );
+          int row = Integer.parseInt( key.substring(comma+1) );
+          Bitmap tile = requestTile(col, row);
+          if (tile == null)   // give up until the next movement
+            break;
+          evictFarTiles();
+          tiles.put(key, tile);
+          invalidate();   // redraw
+        }
+        synchronized(tiles) {
+          isLoadingTiles = false;
+        }
+      } 
+    }); 
+    t.start(); 
+  }  // end of loadVisibleTiles()
+
+
+
+  private String findMissingTile()
+  // return the "col,row" key of a visible tile which isn't loaded, or null
+  {
+    for (int row = firstTile(yDraw); row <= lastTile(yDraw, screenHeight, numTileRows); row++)
+      for (int col = firstTile(xDraw); col <= lastTile(xDraw, screenWidth, numTileCols); col++) {
+        String key = col + "," + row;
+        if (!tiles.containsKey(key))
+          return key;
+      }
+    return null;
+  }  // end of findMissingTile()
+
+
+
+  private void evictFarTiles()
+  /* remove the tiles more than TILE_MARGIN columns or rows outside
+     the screen, so they can be garbage collected; they are downloaded
+     again if the user moves back to them */
+  {
+    int minCol = firstTile(xDraw) - TILE_MARGIN;
+    int maxCol = lastTile(xDraw, screenWidth, numTileCols) + TILE_MARGIN;
+    int minRow = firstTile(yDraw) - TILE_MARGIN;
+    int maxRow = lastTile(yDraw, screenHeight, numTileRows) + TILE_MARGIN;
+
+    Vector farKeys = new Vector();
+    Enumeration keys = tiles.keys();
+    while (keys.hasMoreElements()) {
+      String key = (String) keys.nextElement();
+      int comma = key.indexOf(',');
+      int col = Integer.parseInt( key.substring(0, comma) );
+      int row = Integer.parseInt( key.substring(comma+1) );
+      if ((col < minCol) || (col > maxCol) || (row < minRow) || (row > maxRow))
+        farKeys.addElement(key);
+    }
+    for (int i=0; i < farKeys.size(); i++)
+      tiles.remove( farKeys.elementAt(i) );
+  }  // end of evictFarTiles()
+
+
+
+  private Bitmap requestTile(int col, int row)
+  // send a "tile" message to the server, and return the tile, or null
+  {
+    String tileDirect = SERVER + "?cmd=tile&uid=" + uid + "&z=" + tileZoom +
+                        "&x=" + col + "&y=" + row + ";deviceside=true";
+    Bitmap tile = null;
+    HttpConnection conn = null; 
+    InputStream inStream = null; 
+    try { 
+      conn = (HttpConnection) Connector.open(tileDirect, Connector.READ, true); 
+      inStream = conn.openInputStream();
+      if ((conn.getResponseCode() == HttpConnection.HTTP_OK) && isJPG(conn))
+        tile = downloadImage(inStream);
+    } 
+    catch (IOException ex)
+    { System.out.println(ex); } 
+    finally { 
+      try { 
+        inStream.close(); 
+        inStream = null; 
+        conn.close(); 
+        conn = null; 
+      } 
+      catch (Exception e) {} 
+    } 
+    return tile;
+  }  // end of requestTile()
+
+
+
   private boolean isJPG(HttpConnection conn) throws IOException
   // is the content of the response a JPG?
   {
@@ -375,6 +578,8 @@ public class ImageScreen extends MainScreen
     xDraw -= (STEP*dx);
     yDraw -= (STEP*dy);
     limitMovement();
+    if (useTiles && mapLoaded)
+      loadVisibleTiles();   // download any newly visible tiles
 
     invalidate();        // redraw the screen
     return true;
@@ -0,0 +1,333 @@
+
+// LocCodec.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* Encode and decode the binary versions of the "loc", "kill" and "watch"
+   messages, and their replies. The binary messages are POSTed to
+   FoxHoundsServlet with the content type "application/octet-stream",
+   and the replies use the same content type.
+
+   The class only uses basic Java, so the same file is used by the
+   FHClient BlackBerry application and by FoxHoundsServlet.
+   All numbers are big-endian.
+
+   Requests:
+     loc:   CMD_LOC   id  lat(int32)  long(int32)  since(int64)
+     kill:  CMD_KILL  id  kid
+     watch: CMD_WATCH id  since(int64)  [timeout(int32)]
+        - an id is a length byte followed by ASCII characters
+        - lat and long are in millionths of a degree
+        - the timeout is the longest time (in ms) the server should hold
+          a watch; it may be left out, and the server uses its own
+
+   Replies:
+     locations:  REPLY_LOCS  version(int64)  count(int16)  record  record ...
+        - a record is RECORD_LEN bytes:
+             index(int16)  flags(byte)  x(uint16)  y(uint16)
+        - the flags hold the player's type (fox or hound) and if alive
+        - an unknown x or y is stored as NO_COORD
+     too soon:   REPLY_TOO_SOON   wait(int32)
+        - the wait is the number of ms before the request can be retried
+     game over:  REPLY_GAME_OVER  message
+     message:    REPLY_MESSAGE    message
+        - a message is a 2-byte length followed by UTF-8 characters
+*/
+
+import java.io.*;
+
+
+
+public class LocCodec
+{
+  public static final String CONTENT_TYPE = "application/octet-stream";
+
+  // request commands
+  public static final byte CMD_LOC = 1;
+  public static final byte CMD_KILL = 2;
+  public static final byte CMD_WATCH = 3;
+
+  // reply types
+  public static final byte REPLY_LOCS = 1;
+  public static final byte REPLY_TOO_SOON = 2;
+  public static final byte REPLY_GAME_OVER = 3;
+  public static final byte REPLY_MESSAGE = 4;
+
+  public static final int MAX_ID_LEN = 32;
+  public static final int MAX_REQUEST_LEN = 1 + 2*(1+MAX_ID_LEN) + 4 + 4 + 8;
+
+  public static final int LOCS_HEADER_LEN = 1 + 8 + 2;
+  public static final int RECORD_LEN = 7;
+  public static final int MAX_RECORDS = 0x7FFF;
+
+  public static final int NO_COORD = 0xFFFF;   // unknown coordinate
+
+  private static final String[] CMD_NAMES = { null, "loc", "kill", "watch" };
+            // the names of the matching text commands
+
+  private static final int FLAG_HOUND = 1;
+  private static final int FLAG_ALIVE = 2;
+
+  private static final double E6 = 1000000.0;   // fixed-point scale for lat/long
+
+
+
+  // ----------------------- requests ---------------------------
+
+
+  public static int encodeLoc(byte[] buf, String uid, double lat, double lng, long since)
+  // store a loc request in buf, and return its length
+  {
+    buf[0] = CMD_LOC;
+    int pos = putID(buf, 1, uid);
+    putInt(buf, pos, (int) Math.floor(lat*E6 + 0.5));
+    putInt(buf, pos+4, (int) Math.floor(lng*E6 + 0.5));
+    putLong(buf, pos+8, since);
+    return pos+16;
+  }  // end of encodeLoc()
+
+
+  public static int encodeWatch(byte[] buf, String uid, long since, long timeout)
+  // store a watch request in buf, and return its length
+  {
+    buf[0] = CMD_WATCH;
+    int pos = putID(buf, 1, uid);
+    putLong(buf, pos, since);
+    putInt(buf, pos+8, (int) Math.max(0, Math.min(timeout, Integer.MAX_VALUE)));
+    return pos+12;
+  }  // end of encodeWatch()
+
+
+  public static int encodeKill(byte[] buf, String uid, String kid)
+  // store a kill request in buf, and return its length
+  {
+    buf[0] = CMD_KILL;
+    int pos = putID(buf, 1, uid);
+    return putID(buf, pos, kid);
+  }  // end of encodeKill()
+
+
+  public static byte getCommand(byte[] buf)
+  {  return buf[0];  }
+
+
+  public static String getCommandName(byte[] buf)
+  // the name of the text command which does the same job
+  {  int cmd = buf[0];
+     return ((cmd > 0) && (cmd < CMD_NAMES.length)) ? CMD_NAMES[cmd] : null;
+  }
+
+
+  public static String getUID(byte[] buf)
+  {  return getID(buf, 1);  }
+
+
+  private static int argsPos(byte[] buf)
+  // the position of the arguments after the player's ID
+  {  return 2 + (buf[1] & 0xFF);  }
+
+
+  public static double getLat(byte[] buf)
+  {  return getInt(buf, argsPos(buf)) / E6;  }
+
+  public static double getLong(byte[] buf)
+  {  return getInt(buf, argsPos(buf)+4) / E6;  }
+
+  public static long getSince(byte[] buf)
+  // since is the only argument of a watch request
+  {  int pos = argsPos(buf);
+     return getLong(buf, (buf[0] == CMD_WATCH) ? pos : pos+8);
+  }
+
+  public static long getWatchTimeout(byte[] buf, int len)
+  // the watch's timeout in ms, or -1 if the request doesn't have one
+  {  int pos = argsPos(buf)+8;
+     return (len == pos+4) ? getInt(buf, pos) : -1;
+  }
+
+  public static String getKID(byte[] buf)
+  {  return getID(buf, argsPos(buf));  }
+
+
+  public static boolean isValidRequest(byte[] buf, int len)
+  // check that the request's lengths are consistent
+  {
+    if (len < 2)
+      return false;
+    int pos = argsPos(buf);
+    if (buf[0] == CMD_LOC)
+      return (len == pos+16);
+    else if (buf[0] == CMD_WATCH)
+      return (len == pos+8) || (len == pos+12);   // the timeout is optional
+    else if ((buf[0] == CMD_KILL) && (len > pos))
+      return (len == pos + 1 + (buf[pos] & 0xFF));
+    return false;
+  }  // end of isValidRequest()
+
+
+
+  // ----------------------- replies ---------------------------
+
+
+  public static int locsLength(int numRecords)
+  {  return LOCS_HEADER_LEN + numRecords*RECORD_LEN;  }
+
+
+  public static void encodeLocsHeader(byte[] buf, long version, int numRecords)
+  {
+    buf[0] = REPLY_LOCS;
+    putLong(buf, 1, version);
+    putShort(buf, 9, numRecords);
+  }  // end of encodeLocsHeader()
+
+
+  public static void encodeRecord(byte[] buf, int recNo, int index, boolean isHound,
+                                  int x, int y, boolean isAlive)
+  // store record number recNo in a locations reply
+  {
+    int pos = LOCS_HEADER_LEN + recNo*RECORD_LEN;
+    putShort(buf, pos, index);
+    buf[pos+2] = (byte)((isHound ? FLAG_HOUND : 0) | (isAlive ? FLAG_ALIVE : 0));
+    putShort(buf, pos+3, ((x < 0) || (x > NO_COORD)) ? NO_COORD : x);
+    putShort(buf, pos+5, ((y < 0) || (y > NO_COORD)) ? NO_COORD : y);
+  }  // end of encodeRecord()
+
+
+  public static byte[] encodeMessage(byte replyType, String msg)
+  // return a game-over or message reply
+  {
+    byte[] msgBytes = toUTF8(msg);
+    int len = Math.min(msgBytes.length, 0xFFFF);
+    byte[] buf = new byte[3 + len];
+    buf[0] = replyType;
+    putShort(buf, 1, len);
+    System.arraycopy(msgBytes, 0, buf, 3, len);
+    return buf;
+  }  // end of encodeMessage()
+
+
+  public static byte[] encodeTooSoon(long waitMs)
+  // return a too-soon reply
+  {
+    byte[] buf = new byte[5];
+    buf[0] = REPLY_TOO_SOON;
+    putInt(buf, 1, (int) Math.min(waitMs, Integer.MAX_VALUE));
+    return buf;
+  }  // end of encodeTooSoon()
+
+
+  public static byte getReplyType(byte[] buf)
+  {  return buf[0];  }
+
+  public static int getRetryWait(byte[] buf)
+  // the ms to wait in a too-soon reply
+  {  return (buf.length < 5) ? 0 : getInt(buf, 1);  }
+
+  public static long getLocsVersion(byte[] buf)
+  {  return getLong(buf, 1);  }
+
+  public static int getLocsCount(byte[] buf)
+  {  return getShort(buf, 9);  }
+
+
+  public static int recordPos(int recNo)
+  // the position of record number recNo in a locations reply
+  {  return LOCS_HEADER_LEN + recNo*RECORD_LEN;  }
+
+  public static int getRecordIndex(byte[] buf, int pos)
+  {  return getShort(buf, pos);  }
+
+  public static boolean isRecordHound(byte[] buf, int pos)
+  {  return ((buf[pos+2] & FLAG_HOUND) != 0);  }
+
+  public static boolean isRecordAlive(byte[] buf, int pos)
+  {  return ((buf[pos+2] & FLAG_ALIVE) != 0);  }
+
+  public static int getRecordX(byte[] buf, int pos)
+  {  int x = getShort(buf, pos+3);
+     return (x == NO_COORD) ? -1 : x;
+  }
+
+  public static int getRecordY(byte[] buf, int pos)
+  {  int y = getShort(buf, pos+5);
+     return (y == NO_COORD) ? -1 : y;
+  }
+
+
+  public static String getMessage(byte[] buf)
+  // the text of a game-over or message reply
+  {
+    int len = getShort(buf, 1);
+    try {
+      return new String(buf, 3, len, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {  return new String(buf, 3, len);  }
+  }  // end of getMessage()
+
+
+
+  // ----------------------- fields ---------------------------
+
+
+  private static int putID(byte[] buf, int pos, String id)
+  // store a length byte and the ID's characters; return the next position
+  {
+    int len = Math.min(id.length(), MAX_ID_LEN);
+    buf[pos] = (byte) len;
+    for (int i=0; i < len; i++)
+      buf[pos+1+i] = (byte) id.charAt(i);
+    return pos+1+len;
+  }  // end of putID()
+
+
+  private static String getID(byte[] buf, int pos)
+  {
+    int len = buf[pos] & 0xFF;
+    char[] chars = new char[len];
+    for (int i=0; i < len; i++)
+      chars[i] = (char)(buf[pos+1+i] & 0xFF);
+    return new String(chars);
+  }  // end of getID()
+
+
+  private static void putShort(byte[] buf, int pos, int v)
+  {  buf[pos] = (byte)(v >> 8);
+     buf[pos+1] = (byte) v;
+  }
+
+  private static int getShort(byte[] buf, int pos)   // unsigned
+  {  return ((buf[pos] & 0xFF) << 8) | (buf[pos+1] & 0xFF);  }
+
+
+  private static void putInt(byte[] buf, int pos, int v)
+  {  buf[pos] = (byte)(v >> 24);
+     buf[pos+1] = (byte)(v >> 16);
+     buf[pos+2] = (byte)(v >> 8);
+     buf[pos+3] = (byte) v;
+  }
+
+  private static int getInt(byte[] buf, int pos)
+  {  return ((buf[pos] & 0xFF) << 24) | ((buf[pos+1] & 0xFF) << 16) |
+            ((buf[pos+2] & 0xFF) << 8) | (buf[pos+3] & 0xFF);
+  }
+
+
+  private static void putLong(byte[] buf, int pos, long v)
+  {  putInt(buf, pos, (int)(v >> 32));
+     putInt(buf, pos+4, (int) v);
+  }
+
+  private static long getLong(byte[] buf, int pos)
+  {  return (((long) getInt(buf, pos)) << 32) | (getInt(buf, pos+4) & 0xFFFFFFFFL);  }
+
+
+  private static byte[] toUTF8(String s)
+  {
+    try {
+      return s.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {  return s.getBytes();  }
+  }  // end of toUTF8()
+
+}  // end of LocCodec class
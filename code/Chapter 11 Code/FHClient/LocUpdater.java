@@ -2,20 +2,34 @@
 // LocUpdater.java
 // Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
 
-/* A thread which periodically sends a "loc" command to the server:
-       FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
+/* A thread which periodically sends a "loc" command to the server.
    This informs the server of the player's current (latitude, longitude).
 
+   The command is POSTed to the server in the binary format
+   described in LocCodec, which is smaller than the text version
+       FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
+   and its binary reply doesn't need to be split up and parsed.
+
    The latitude and logitude come from a GPSLocator object, which uses
    the BlackBerry's GPS support.
 
-   The response from the server is a list of all the players details,
-   in the format
-               first-letter-of-id x y player-state
-                   :
+   The response from the server is a list of the players details
+   (their index, type, (x,y) location, and if they're alive), and
+   a version number. The version is sent back with the next command,
+   so the server only returns the players that have changed.
+
+   Between "loc" commands, the thread sends "watch" commands.
+   The server holds onto a watch command until a player moves or dies,
+   and then replies with the changes, so the screen is updated as
+   soon as something happens rather than at the next "loc". Each watch
+   includes the time left before the next "loc", so the server never
+   holds it past the time when the location should be sent.
 
    But if the request comes from a hound, the data is only returned after
-   a specified interval since the last "loc" result.
+   a specified interval since the last location result, so a hound
+   mostly waits for its next "loc". The server's "too soon" reply says
+   how long to wait, so the thread sleeps for that long (up to the
+   next "loc") instead of sending more watch requests.
 */
 
 import net.rim.device.api.ui.component.*;
@@ -28,19 +42,23 @@ import javax.microedition.location.*;
 
 public class LocUpdater extends Thread
 {
-  private static final int SLEEP_TIME = 35*1000;    // 35 secs between polling
+  private static final int SLEEP_TIME = 35*1000;    // 35 secs between sending locations
+  private static final int RETRY_TIME = 5*1000;     // wait after a failed watch
 
   private static final String SERVER = "http://FOX_HOUNDS.COM/FoxHoundsServlet";
             /*   *** CHANGE THIS URL *** */
 
   private volatile boolean isRunning = true;   // used to stop the thread
+  private long since = 0;    // version of the last location reply; 0 means none
+  private long retryWait = 0;   // ms to wait after a "too soon" reply
+  private byte[] request = new byte[LocCodec.MAX_REQUEST_LEN];
   private ImageScreen imageScreen;
   private String uid;
   private GPSLocator gpsLocator;
 
 
   public LocUpdater(String id, ImageScreen imScr)
-  {  
+  {
     uid = id;
     imageScreen = imScr;
     gpsLocator = new GPSLocator();   // GPS object
@@ -52,19 +70,28 @@ public class LocUpdater extends Thread
 
 
   public void run()
-  /* get the position, send a "loc" command, process the response, sleep,
-     and then start again. */
-  { 
+  /* get the position, send a "loc" command, and process the response.
+     Then send "watch" commands until it's time for the next "loc".
+     If watching isn't possible, then sleep instead. */
+  {
+    long locTime = 0;   // when the last "loc" was sent
     while(isRunning) {
-      Coordinates coord = gpsLocator.getCoord();
-      if (coord == null)
-        System.out.println("No GPS coordinate found");
-      else
-        requestLoc(uid, coord);    // send a "loc" request
-      try {
-        Thread.sleep(SLEEP_TIME);  // sleep for some ms
+      long waitTime = SLEEP_TIME - (System.currentTimeMillis() - locTime);
+      if (waitTime <= 0) {   // time to send a location
+        locTime = System.currentTimeMillis();
+        Coordinates coord = gpsLocator.getCoord();
+        if (coord == null)
+          System.out.println("No GPS coordinate found");
+        else
+          requestLoc(uid, coord);    // send a "loc" request
+      }
+      else if (!requestWatch(uid, waitTime)) {   // wait for changes, up to the next loc
+        try {
+          Thread.sleep( Math.min(waitTime, Math.max(RETRY_TIME, retryWait)) );  // sleep for some ms
+          retryWait = 0;
+        }
+        catch(InterruptedException ex){}
       }
-      catch(InterruptedException ex){}
     }
     gpsLocator.stop();
   } // end of run()
@@ -73,58 +100,109 @@ public class LocUpdater extends Thread
 
 
   private void requestLoc(String uid, Coordinates coord)
-  /* send a "loc" request to the server:
-       FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
-  */
+  // POST a binary "loc" request to the server
   {
     // send the GPS-supplied lat and long
-    String locDirect = SERVER + "?cmd=loc&uid=" + uid + "&" +
-                       "lat=" + coord.getLatitude() + "&" +
-                       "long=" + coord.getLongitude() +  ";deviceside=true";
-
-    HttpConnection conn = null; 
-    InputStream inStream = null; 
-    try { 
-      conn = (HttpConnection) Connector.open(locDirect, Connector.READ, true); 
+    int len = LocCodec.encodeLoc(request, uid, coord.getLatitude(),
+                                       coord.getLongitude(), since);
+    byte[] reply = postRequest(len);
+    if (reply == null)
+      Utils.showMessage("Error", "Location update failed");
+    else
+      processReply(reply);
+  }  // end of requestLoc()
+
+
+
+  private boolean requestWatch(String uid, long timeout)
+  /* POST a binary "watch" request to the server, which replies when
+     a player changes, or after timeout ms (or its own, shorter, timeout).
+     Return false if the server didn't send back location details */
+  {
+    int len = LocCodec.encodeWatch(request, uid, since, timeout);
+    byte[] reply = postRequest(len);
+    if (reply == null)
+      return false;
+    return (processReply(reply) == LocCodec.REPLY_LOCS);
+  }  // end of requestWatch()
+
+
+
+  private byte[] postRequest(int len)
+  // POST the request to the server, and return the reply, or null
+  {
+    String locDirect = SERVER + ";deviceside=true";
+
+    HttpConnection conn = null;
+    OutputStream outStream = null;
+    InputStream inStream = null;
+    byte[] reply = null;
+    try {
+      conn = (HttpConnection) Connector.open(locDirect, Connector.READ_WRITE, true);
+      conn.setRequestMethod(HttpConnection.POST);
+      conn.setRequestProperty("Content-Type", LocCodec.CONTENT_TYPE);
+      conn.setRequestProperty("Content-Length", "" + len);
+      outStream = conn.openOutputStream();
+      outStream.write(request, 0, len);
+      outStream.close();
+      outStream = null;
+
       inStream = conn.openInputStream();
       if (conn.getResponseCode() == HttpConnection.HTTP_OK)
-        downloadReply(inStream);    // extract answer
-    } 
+        reply = downloadReply(inStream);    // extract answer
+    }
     catch (IOException ex)
-    { Utils.showMessage("Error", "Location update failed"); } 
-    finally { 
-      try { 
-        inStream.close(); 
-        inStream = null; 
-        conn.close(); 
-        conn = null; 
-      } 
-      catch (Exception e) {} 
-    } 
-  }  // end of requestLoc()
+    { System.out.println(ex); }
+    finally {
+      try {
+        if (outStream != null)
+          outStream.close();
+        inStream.close();
+        inStream = null;
+        conn.close();
+        conn = null;
+      }
+      catch (Exception e) {}
+    }
+    return reply;
+  }  // end of postRequest()
 
 
 
-  private void downloadReply(InputStream inStream) throws IOException
-  // process "loc" command reply from the server
+  private byte[] downloadReply(InputStream inStream) throws IOException
+  // read the input stream bytes into a byte array
   {
     byte[] buffer = new byte[256];
-    StringBuffer sb = new StringBuffer();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
     int len = 0;
     while ((len = inStream.read(buffer)) != -1)
-      sb.append(new String(buffer, 0, len));
+      baos.write(buffer, 0, len);
+    return baos.toByteArray();
+  }  // end of downloadReply()
+
+
 
-    String reply = sb.toString();
-    
-    if (reply.startsWith("GAME_OVER")) {   // tell ImageScreen that the game is over
-      imageScreen.finishGame(reply.substring(10));
+  private byte processReply(byte[] reply)
+  // process a binary reply from the server, and return its type
+  {
+    if (reply.length == 0)
+      return -1;
+
+    byte replyType = LocCodec.getReplyType(reply);
+    if (replyType == LocCodec.REPLY_GAME_OVER) {   // tell ImageScreen that the game is over
+      imageScreen.finishGame( LocCodec.getMessage(reply) );
       isRunning = false;
     }
-    else if (reply.startsWith("LOCS"))  // pass location info to ImageScreen
-      imageScreen.updateLocs(reply.substring(5));
-    else if (reply.startsWith("TOO SOON")) {} // request was too soon, so do nothing
+    else if (replyType == LocCodec.REPLY_LOCS) {  // pass location info to ImageScreen
+      since = LocCodec.getLocsVersion(reply);
+      if (LocCodec.getLocsCount(reply) > 0)
+        imageScreen.updateLocs(reply);
+    }
+    else if (replyType == LocCodec.REPLY_TOO_SOON)   // request was too soon, so wait
+      retryWait = LocCodec.getRetryWait(reply);
     else
-      Utils.showMessage("Location Error", reply);
-  }  // end of downloadReply()
+      Utils.showMessage("Location Error", LocCodec.getMessage(reply));
+    return replyType;
+  }  // end of processReply()
 
 }  // end of LocUpdater class
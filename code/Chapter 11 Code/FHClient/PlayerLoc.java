@@ -9,8 +9,6 @@
    The images used for displaying the players are loaded by the class
 */
 
-import java.util.*;
-
 import net.rim.device.api.system.*;
 import net.rim.device.api.ui.*;
 
@@ -38,25 +36,17 @@ public class PlayerLoc
   private boolean isAlive;
 
 
-  public PlayerLoc(String playerInfo)
-  { 
-    Vector words = Utils.split(playerInfo, " ");    
-      // split up the player info string based based on its spaces
+  public PlayerLoc(byte[] reply, int pos)
+  // use the player record at position pos in a binary "loc" reply
+  {
+    playerType = LocCodec.isRecordHound(reply, pos) ? HOUND : FOX;
+    x = LocCodec.getRecordX(reply, pos);
+    y = LocCodec.getRecordY(reply, pos);
+    isAlive = LocCodec.isRecordAlive(reply, pos);
+  }  // end of PlayerLoc()
 
-    if (words.size() == 4) {    // ID-letter x y alive
-      String typeStr = (String) words.elementAt(0);
-      playerType = typeStr.trim().equals("F") ? FOX : HOUND;
 
-      try {
-        x = Integer.parseInt( (String)words.elementAt(1) );
-        y = Integer.parseInt( (String)words.elementAt(2) );
-      }
-      catch (NumberFormatException e) {}
 
-      String aliveStr = (String) words.elementAt(3);
-      isAlive = aliveStr.trim().equals("true") ? true : false;
-    }
-  }  // end of PlayerLoc()
 
   
 
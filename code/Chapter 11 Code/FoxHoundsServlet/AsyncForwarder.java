@@ -0,0 +1,56 @@
+
+// AsyncForwarder.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* An AsyncListener which passes its events on to a listener that is
+   attached later.
+
+   The Servlet spec only allows listeners to be added to an asynchronous
+   request (or its timeout to be changed) while the container's dispatch
+   is still running. But a "watch" is only parked later, by an executor
+   thread, once the game has looked at it. So FoxHoundsServlet.dispatch()
+   adds a forwarder to every asynchronous request, and stores it as
+   a request attribute; the game then attaches its Watcher to it.
+
+   Events which arrive before a listener is attached are ignored.
+*/
+
+import javax.servlet.*;
+
+import java.io.*;
+
+
+
+public class AsyncForwarder implements AsyncListener
+{
+  public static final String ATTRIBUTE = "FoxHounds.asyncForwarder";
+
+  private volatile AsyncListener target = null;
+
+
+
+  public void setTarget(AsyncListener l)
+  {  target = l;  }
+
+
+  public void onComplete(AsyncEvent e) throws IOException
+  {  AsyncListener l = target;
+     if (l != null)
+       l.onComplete(e);
+  }
+
+  public void onTimeout(AsyncEvent e) throws IOException
+  {  AsyncListener l = target;
+     if (l != null)
+       l.onTimeout(e);
+  }
+
+  public void onError(AsyncEvent e) throws IOException
+  {  AsyncListener l = target;
+     if (l != null)
+       l.onError(e);
+  }
+
+  public void onStartAsync(AsyncEvent e) throws IOException {}
+
+}  // end of AsyncForwarder class
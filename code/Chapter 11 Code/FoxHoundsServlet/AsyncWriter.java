@@ -0,0 +1,73 @@
+
+// AsyncWriter.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* Writes a byte array to an asynchronous response without blocking.
+
+   The container calls onWritePossible() whenever the client can take
+   more data, and the writer sends CHUNK_SIZE bytes at a time until
+   the output isn't ready. No thread waits for a slow client, which
+   matters for big replies such as the map. The asynchronous request
+   is completed when all the bytes have been written, or if there's
+   an error.
+*/
+
+import javax.servlet.*;
+
+import java.io.*;
+
+
+
+public class AsyncWriter implements WriteListener
+{
+  private static final int CHUNK_SIZE = 8*1024;
+
+  private final AsyncContext context;
+  private final ServletOutputStream out;
+  private final byte[] bytes;
+  private int pos = 0;    // the next byte to write
+
+
+
+  private AsyncWriter(AsyncContext ac, ServletOutputStream os, byte[] bs)
+  {
+    context = ac;
+    out = os;
+    bytes = bs;
+  }  // end of AsyncWriter()
+
+
+
+  public static void write(AsyncContext ac, byte[] bytes) throws IOException
+  /* start writing the bytes to the context's response; the
+     content type and length must already have been set */
+  {
+    ServletOutputStream os = ac.getResponse().getOutputStream();
+    os.setWriteListener( new AsyncWriter(ac, os, bytes) );
+  }  // end of write()
+
+
+
+  public void onWritePossible() throws IOException
+  // called by the container, but never by two threads at once
+  {
+    while (out.isReady()) {
+      if (pos == bytes.length) {
+        context.complete();
+        return;
+      }
+      int len = Math.min(CHUNK_SIZE, bytes.length - pos);
+      out.write(bytes, pos, len);
+      pos += len;
+    }
+  }  // end of onWritePossible()
+
+
+
+  public void onError(Throwable t)
+  {
+    System.out.println("Async write failed: " + t);
+    context.complete();
+  }  // end of onError()
+
+}  // end of AsyncWriter class
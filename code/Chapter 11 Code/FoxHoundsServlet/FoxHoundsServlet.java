@@ -10,16 +10,57 @@
 
     * FoxHoundsServlet?cmd=hi&uid=??
         - return map or a game-over message
+        - if tiles=true is added, return the map and tile sizes instead
+          of the map:  TILES map-width map-height tile-size max-zoom
+
+    * FoxHoundsServlet?cmd=tile&uid=??&z=??&x=??&y=??
+        - return the JPEG map tile at zoom level z, column x, row y;
+          the tiles are cut from the map when it's loaded (see MapTiles)
 
     * FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
         - receive player's current GPS (latitude, longitude) location
         - send back all players details:
                id x y player-state
                    :
+        - if a since=?? argument is added, only the players that have 
+          changed since that version are sent back, together with the
+          current version:
+               LOCS version
+               index id x y player-state
+                   :
 
     * FoxHoundsServlet?cmd=kill&uid=??&kid=??
         - kill request
         - send back response
+        - the target must be within a short distance of the killer
+
+    * FoxHoundsServlet?cmd=near&uid=??&dist=??
+        - send back the details of the players within dist pixels
+          of the player's last location, in the same format as "loc"
+
+    * FoxHoundsServlet?cmd=watch&uid=??[&since=??][&timeout=??]
+        - wait until a player changes after the since version, and
+          then send back the changes in the same format as "loc"
+        - the wait is at most timeout ms (and never more than 30 secs)
+        - the request waits without using a thread, so the servlet
+          must be registered with async support (see readme.txt)
+
+    * FoxHoundsServlet?cmd=trail&uid=??[&tid=??][&since=??]
+        - send back the times and locations in the trail of player tid
+          (or of the player, if there's no tid), after the since time
+        - another player's trail can only be seen after the game is over;
+          all the trails are saved in trails.dat when the game ends
+
+  Binary Player Messages:
+
+    The "loc", "kill" and "watch" messages may also be POSTed to FoxHoundsServlet
+    in a compact binary form, with the content type 
+    "application/octet-stream". The reply is binary as well. 
+    The formats are described in LocCodec.
+
+  Every message may also include a game ID argument, gid=??,
+  which selects one of the games run by the server. If there's
+  no gid then the default game is used.
 
 
   A map is added to the server by the organizer before the game starts,
@@ -28,361 +69,205 @@
   A UID is allocated to a player by the organizer before the game starts,
   and the ID info and map details are read in from the PLAYERS_FNM file.
 
+  The default game uses the map and players files in the servlet's
+  'home' directory. Extra games use the files in the subdirectories
+  of the games/ directory (see GameRegistry).
+
 
   Server-side infomation includes details about each player
   (uid, alive/dead).
+
+  Requests are handled on an executor rather than on the container's
+  threads, using asynchronous requests, so slow clients (e.g. when
+  everyone downloads the map at the start of a game) don't use up the
+  container's thread pool. The executor is chosen by the servlet's
+  "executor" init parameter:
+      virtual     a virtual thread for each request, if the JVM has
+                  them; otherwise a pool of DEFAULT_POOL_SIZE threads
+                  (the default)
+      pool:N      a pool of N threads
+      container   the container's own threads, as before
+  The map itself is written without blocking (see AsyncWriter).
 */
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
 import java.io.*;
-import java.util.*;
-import java.awt.image.*;
-import javax.imageio.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 
 
 public class FoxHoundsServlet extends HttpServlet
 {
-  private static final int MAX_PLAYERS = 5;
-
-  private static final int MIN_REQUEST_PERIOD = 2*60;    // 2 minutes in seconds
-  private static final long GAME_TIME_LENGTH = 30*60;    // 30 minutes in seconds
+  private static final int DEFAULT_POOL_SIZE = 64;
+  private static final long REQUEST_TIMEOUT = 5*60*1000;
+        // 5 mins, in ms; long enough to send the map to a slow client
 
-  private static final String PLAYERS_FNM = "players.txt";
-        /*  format:   map center latitude
-                      map center longitude
-                      map zoom
-                      player id1     // if id starts with 'H' than is hound; 'F' means fox
-                      player id2     // one fox, 4 hounds
-                        :
-        */
+  private GameRegistry registry;   // all the games run by this servlet
 
-  private static final String MAP_FNM = "map.jpg";
-
-
-
-  private Player[] players;   // for storing player information
-
-  private BufferedImage mapIm = null;
-  private String imMimeType = null;   // mime type of the image
-
-  private MapCoords mapCoords;     // for converting (lat,long) info into image coords
- 
-  private long startTime = -1;     // in seconds; reset whenever fox says hi
-  private boolean isGameOver = false;
-  private String gameOverMessage;
+  private ExecutorService executor = null;
+         // runs the requests; null means use the container's thread
 
   // private Logger log = null;
 
 
 
   public void init() // throws ServletException
-  {  
-    ServletContext sc = getServletContext();
-
-    //load player info and the map
-    String playersFnm = sc.getRealPath(PLAYERS_FNM);
-    loadPlayersInfo(playersFnm);
-
-    String mapFnm = sc.getRealPath(MAP_FNM);
-    loadMap(mapFnm);
-    imMimeType = sc.getMimeType(mapFnm);
+  {
+    registry = new GameRegistry();
+    registry.loadGames( getServletContext() );   // load the players info and maps
+    executor = makeExecutor( getInitParameter("executor") );
   }  // end of init()
 
 
 
-  private void loadPlayersInfo(String playersFnm)
+  private ExecutorService makeExecutor(String type)
+  /* create the executor named by the "executor" init parameter;
+     virtual threads are looked up by reflection, so the servlet
+     can still be compiled and run on older JVMs */
   {
-    try {
-      BufferedReader in = new BufferedReader( new FileReader( playersFnm ));
-
-      // load map details
-      String latStr = in.readLine();    // latitude
-      String lonStr = in.readLine();    // longitude
-      String zoomStr = in.readLine();   // zoom factor
-      mapCoords = new MapCoords(latStr, lonStr, zoomStr);
-
-      // store player IDs
-      players = new Player[MAX_PLAYERS];  
-      String line;
-      int i = 0;
-      while (((line = in.readLine()) != null) && (i < MAX_PLAYERS)) {
-        players[i] = new Player(line.trim());
-        i++;
+    if (type == null)
+      type = "virtual";
+    type = type.trim();
+
+    if (type.equals("container"))
+      return null;
+    else if (type.equals("virtual")) {
+      try {
+        Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) m.invoke(null);
+      }
+      catch (Exception e)
+      {  System.out.println("No virtual threads, so using a pool of " +
+                             DEFAULT_POOL_SIZE + " threads");  }
+    }
+    else if (type.startsWith("pool:")) {
+      try {
+        return Executors.newFixedThreadPool( Integer.parseInt(type.substring(5).trim()) );
       }
-      in.close();
+      catch (Exception e)
+      {  System.out.println("Pool size not understood: " + type);  }
     }
-    catch (IOException e) 
-    {  System.out.println("Problem reading " + playersFnm);  }
-  }  // end of loadPlayersInfo()
+    else
+      System.out.println("Executor type not understood: " + type);
 
+    return Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
+  }  // end of makeExecutor()
 
 
-  private void loadMap(String mapFnm)
-  {
-    try {
-      mapIm = ImageIO.read( new File(mapFnm) );
-    }
-    catch(IOException e)
-    {  System.out.println("Could not read map from " + mapFnm);  }
 
-    if (mapIm != null) 
-       mapCoords.setImageSize( mapIm.getWidth(), mapIm.getHeight() );
-  }  // end of loadMap()
+  public void destroy()
+  // save the state of the games before the servlet is unloaded
+  {
+    if (executor != null)
+      executor.shutdown();
+    if (registry != null)
+      registry.closeGames();
+  }  // end of destroy()
 
 
 
-  // ------------------------ processing GET requests ----------------------------
+  // ------------------------ processing requests ----------------------------
 
 
   public void doGet( HttpServletRequest request,
                       HttpServletResponse response ) throws IOException
-  // look at the cmd parameter to decide which message the player sent
+  // pass the request to the game named by the gid parameter
   {
-    if (isGameOver) {
-      PrintWriter output = response.getWriter();
-      output.println("GAME_OVER " + gameOverMessage);
-      output.close();
-    }
-    else {   // game isn't over
-      // check if game playing time has expired
-      long currTime = System.currentTimeMillis()/1000;   // in seconds
-      if ((startTime > -1) && ((currTime - startTime) > GAME_TIME_LENGTH)) { 
-        isGameOver = true;
-        gameOverMessage = "Playing time ended:\nfox wins";
-        PrintWriter output = response.getWriter();
-        output.println("GAME_OVER " + gameOverMessage);
-        output.close();
-      }
-      else   // still time to play
-        processCmd(request, response);
-    }
+    Game game = findGame(request, response);
+    if (game != null)
+      dispatch(game, request, response, false);
   }  // end of doGet()
 
 
-  private void processCmd(HttpServletRequest request,
-                         HttpServletResponse response) throws IOException
-  /*  Cmd formats:
-        FoxHoundsServlet?cmd=hi&uid=??
-        FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
-        FoxHoundsServlet?cmd=kill&uid=??&kid=??
-  */
-  {
-    // check the player ID first, which is used by all the commands
-    String uid = request.getParameter("uid");
-    Player p = findPlayer(uid);
-    if (p == null) {
-      PrintWriter output = response.getWriter();
-      output.println("Player ID not found");  // request rejected
-      output.close();
-    }
-    else {   // player was found, now process command
-      String command = request.getParameter("cmd");
-      if (command.equals("hi"))
-        processHi(p, response);
-      else if (command.equals("loc"))
-        processLoc(p, request, response);
-      else if (command.equals("kill"))
-        processKill(p, request, response);
-      else {
-        PrintWriter output = response.getWriter();
-        output.println("Command not understood: " + command);  // request rejected
-        output.close();
-      }
-    }
-  }  // end of processCmd()
-
-
-
-  private Player findPlayer(String uid)
-  // reurn the player with ID == uid, or null
-  {
-    for (Player p : players)
-      if (p.hasUID(uid))
-        return p;
-    return null;
-  }  // end of findPlayer()
-
-
-  // ---------------------------- hi command ----------------------------------
-
-
-  private void processHi(Player p, HttpServletResponse response) throws IOException
-  /* Message format: FoxHoundsServlet?cmd=hi&uid=??
-       The server returns a map
-  */
-  {
-    sendMap(response);
-    if (p.isFox() && (startTime == -1))
-      startTime =  System.currentTimeMillis()/1000;   // set when fox first says hi
-  }  // end of processHi()
-
-
 
-
-  private void sendMap(HttpServletResponse resp) throws IOException
+  public void doPost( HttpServletRequest request,
+                      HttpServletResponse response ) throws IOException
+  /* a binary message; the game ID, if there is one, is 
+     still an argument of the URL */
   {
-    if ((mapIm == null) || (imMimeType == null)) {
-      PrintWriter output = resp.getWriter();
-      output.println("Map not found");  // request rejected
-      output.close();
-    }
-    else {
-      resp.setContentType(imMimeType);
-
-      // image ==> byte array
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ImageIO.write(mapIm, "jpg", baos);
-      byte[] buf = baos.toByteArray();
-
-      resp.setContentLength((int) buf.length);  // set content size
-
-      OutputStream out = resp.getOutputStream();
-      out.write(buf);
-      out.flush();
-      out.close();
-    }
-  }  // end of sendMap()
-
-
-
-  // ---------------------------- loc command ----------------------------------
-
-
-  private void processLoc(Player p, HttpServletRequest request,
-                         HttpServletResponse response) throws IOException
-  /* Message format: FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??
-        - receive player's current GPS (latitude, longitude) location
-        - send back all players details:
-               id x y player-state
-                   :
-  */
-  { // convert (lat,long) to map image coordinates
-    double lat = getGPSCoord( request.getParameter("lat"));
-    int yCoord = mapCoords.lat2y(lat);
-
-    double lng = getGPSCoord( request.getParameter("long"));
-    int xCoord = mapCoords.lon2x(lng);
-
-    PrintWriter output = response.getWriter();
-    if ((xCoord < 0) || (xCoord >= mapIm.getWidth()) ||
-        (yCoord < 0) || (yCoord >= mapIm.getHeight()) ) {
-      output.println("You've dropped off the map"); 
-      output.println("lat: " + lat + " --> " + yCoord); 
-      output.println("long: " + lng + " --> " + xCoord); 
-    }
-    else {
-      p.storeCoord(xCoord, yCoord);  // store new coordinates for this player
-      sendLocations(p, output);      // send back all players details
+    String contentType = request.getContentType();
+    if ((contentType == null) || !contentType.startsWith(LocCodec.CONTENT_TYPE)) {
+      response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+      return;
     }
-    output.close();
-  }  // end of processLoc()
+    Game game = findGame(request, response);
+    if (game != null)
+      dispatch(game, request, response, true);
+  }  // end of doPost()
 
 
 
-  private double getGPSCoord(String coordStr)
-  // convert string to double
+  private void dispatch(final Game game, final HttpServletRequest request,
+                        final HttpServletResponse response, final boolean isBinary)
+                                                              throws IOException
+  /* pass the request to the game on an executor thread, and release
+     the container's thread. The request is completed when the game
+     has finished with it, unless the game will finish it later
+     (e.g. a parked "watch", or a map that's still being written) */
   {
-    if (coordStr == null)
-      return -1.0;
-     double gpsCoord = -1.0;
-     try {
-       gpsCoord = Double.parseDouble(coordStr);
-     }
-     catch (NumberFormatException ex){}
-     return gpsCoord;
-  }  // end of getGPSCoord()
-  
-
-
-  private void sendLocations(Player p, PrintWriter output)
-  /* a fox can get player locations at any time, but a hound must 
-     wait MIN_REQUEST_PERIOD seconds between location requests */
-  {
-    if (p.isFox()) {
-      output.println("LOCS"); 
-      for (Player pl : players)    // always send info to the fox
-        output.println( pl.toString() ); 
-    }
-    else {   // p is a hound, so check request interval
-      long requestTime = System.currentTimeMillis()/1000;   // in seconds
-      if ((requestTime - p.getLocRequestTime()) > MIN_REQUEST_PERIOD) {
-        output.println("LOCS"); 
-        for (Player pl : players)
-          output.println( pl.toString() ); 
-        p.setLocRequestTime(requestTime);
-      }
-      else
-        output.println("TOO SOON");   // loc request is too soon
+    if ((executor == null) || !request.isAsyncSupported()) {
+      process(game, request, response, isBinary);   // use this thread
+      return;
     }
-  }  // end of sendLocations()
-
-
-
-  // ---------------------------- kill command ----------------------------------
-
-
-  private void processKill(Player p, HttpServletRequest request,
-                           HttpServletResponse response) throws IOException
-  /* Message format: FoxHoundsServlet?cmd=kill&uid=??&kid=??
-        - process kill request
-  */
-  { Player target = findPlayer( request.getParameter("kid") );  
-                   // get the player who is meant to be killed
 
-    PrintWriter output = response.getWriter();
-    if (target == null)
-      output.println("Target not found");
-    else if (!p.isAlive())
-      output.println("Zombie player not allowed");
-    else if (!target.isAlive())
-      output.println("Target already dead"); 
-    else  
-      killPlayer(p, target, output);
-    output.close();
-  }  // end of processKill()
+    final AsyncContext ac = request.startAsync();
+    /* the timeout and listeners can only be set on this (the container's)
+       thread, so add a forwarder that a parked "watch" can use later */
+    ac.setTimeout(REQUEST_TIMEOUT);
+    AsyncForwarder forwarder = new AsyncForwarder();
+    ac.addListener(forwarder);
+    request.setAttribute(AsyncForwarder.ATTRIBUTE, forwarder);
+    try {
+      executor.execute( new Runnable() {
+        public void run()
+        {
+          boolean isDone = true;
+          try {
+            isDone = process(game, request, response, isBinary);
+          }
+          catch (Exception e)
+          {  System.out.println("Request failed: " + e);  }
+          finally {
+            if (isDone)
+              ac.complete();
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)   // the servlet is stopping
+    {  ac.complete();  }
+  }  // end of dispatch()
 
 
 
-  private void killPlayer(Player p, Player target, PrintWriter output)
-  // try to have player p kill the traget player; report the result
+  private boolean process(Game game, HttpServletRequest request,
+                          HttpServletResponse response, boolean isBinary)
+                                                          throws IOException
+  // return false if the game will finish the request later
   {
-    synchronized(target) {  // target can only be killed by one thread at a time
-      if (p.isFox() && target.isHound()) {  // fox can kill hound
-        target.setAlive(false);   // kill hound
-        if (allHoundsDead()) {   
-          isGameOver = true;
-          gameOverMessage = "Fox wins";
-          output.println("GAME_OVER " + gameOverMessage);
-        }
-        else 
-          output.println("Hound killed"); 
-      }
-      else if (p.isHound() && target.isFox()) {   // hound can kill fox
-        target.setAlive(false);   // kill fox
-        isGameOver = true;
-        gameOverMessage = "Hound " + p.getID() + " wins";
-        output.println("GAME_OVER " + gameOverMessage);
-      }
-      else
-        output.println("Kill rejected"); 
-    }
-  }  // end of killPlayer()
+    if (isBinary)
+      return game.processBinary(request, response);
+    else
+      return game.processRequest(request, response);
+  }  // end of process()
 
 
 
-  private boolean allHoundsDead()
-  // are all the hounds dead?
+  private Game findGame(HttpServletRequest request,
+                        HttpServletResponse response) throws IOException
+  // return the game named by the gid parameter, or reject the request
   {
-    for (Player p : players) {
-      if (p.isHound() && p.isAlive())
-        return false;  // since a hound is still alive
+    Game game = registry.getGame( request.getParameter("gid") );
+    if (game == null) {
+      PrintWriter output = response.getWriter();
+      output.println("Game not found");  // request rejected
+      output.close();
     }
-    return true;
-  }  // end of allHoundsDead()
+    return game;
+  }  // end of findGame()
 
 
 } // end of FoxHoundsServlet class
-
@@ -0,0 +1,924 @@
+
+// Game.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A single fox and hounds game. Each game has its own players,
+   map, MapCoords converter, clock, and game-over state, so many
+   games can be run at once by one FoxHoundsServlet.
+
+   The game's start time and game-over state are held in a single
+   GameState object, which is replaced atomically as the game moves
+   from not started, to running, to over. No request ever locks:
+   the first thread to end the game wins, and every other request
+   sees the same game-over message. The playing time is ended by a
+   task on the registry's timer, so requests don't check the clock.
+
+   The player IDs and map details are read from a players file,
+   and the map from a JPG file. Everything loaded from them is held
+   in a GameSetup. The timer checks the files every RELOAD_PERIOD ms,
+   and when they have been changed (and then left alone for a check),
+   a new setup is loaded on the loader thread and swapped in. Each
+   request reads the setup once when it starts, so it never sees a
+   mix of the old and new players or maps.
+
+   "watch" requests wait in the watchers queue until a player
+   changes, or the game ends (see Watcher).
+
+   Each player's use of each command is limited by a RateLimiter.
+   The limits come from the limits properties passed to the game,
+   and default to those in GameSetup. A separate "locs" limit
+   controls how often a player is sent the players' locations; by
+   default a hound must wait 2 minutes, but a fox has no limit.
+   A rejected request is answered with "TOO SOON" and the time to
+   wait before trying again.
+
+   Every change to the game is recorded by a GameJournal in the
+   game's directory, and the game is restored from it when it's
+   created, so a restarted server carries on with the same game.
+   The version numbers start from the current time, so they are
+   always bigger than the versions handed out before a restart.
+
+   Every time a player moves, the new location is added to the
+   player's Trail. The trails can be read with the "trail" command,
+   and they are saved to TRAILS_FNM when the game ends.
+*/
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+public class Game
+{
+  private static final long GAME_TIME_LENGTH = 30*60;    // 30 minutes in seconds
+
+  private static final long WATCH_TIMEOUT = 30*1000;   // 30 secs, in ms
+
+  private static final long RELOAD_PERIOD = 5*1000;   // 5 secs, in ms
+
+  private static final int KILL_RADIUS = 150;
+     /* max distance in pixels between the killer and the target (about 90m
+        at zoom 18); it must be big enough to allow for GPS errors */
+
+  private static final String TRAILS_FNM = "trails.dat";
+
+
+  private final String gameID;
+  private final File gameDir;   // where the journal and trails are saved
+
+  private final String playersFnm, mapFnm, mimeType;
+  private final Properties limits;
+
+  private volatile GameSetup setup;
+       // the players, map, and limiters; null if the players file couldn't be read
+
+  private final AtomicLong versions = new AtomicLong( System.currentTimeMillis() );
+       // the game's latest player version; incremented each time a player changes
+
+  private final ConcurrentLinkedQueue<Watcher> watchers = 
+                                     new ConcurrentLinkedQueue<Watcher>();
+       // "watch" requests waiting for a change
+
+  private GameJournal journal = null;   // records changes, so they survive a restart
+
+  private final AtomicReference<GameState> state =
+                      new AtomicReference<GameState>(GameState.NOT_STARTED);
+
+  private final ScheduledExecutorService timer;   // runs the end-of-time and reload checks
+  private volatile ScheduledFuture<?> expiryTask = null;
+
+  private final ExecutorService loader;   // loads changed setups
+  private ScheduledFuture<?> reloadTask = null;
+  private long changedTime = 0;   // mod times of the changed files, when last checked
+  private volatile long failedTime = 0;   // mod times of the files which couldn't be loaded
+  private final AtomicBoolean isReloading = new AtomicBoolean(false);
+
+
+
+  public Game(String gid, String playersFnm, String mapFnm, String mimeType,
+              ScheduledExecutorService tm, ExecutorService ldr, Properties limits)
+  {
+    gameID = gid;
+    gameDir = new File(playersFnm).getAbsoluteFile().getParentFile();
+    this.playersFnm = playersFnm;
+    this.mapFnm = mapFnm;
+    this.mimeType = mimeType;
+    this.limits = limits;
+    timer = tm;
+    loader = ldr;
+
+    setup = GameSetup.load(playersFnm, mapFnm, mimeType, limits, null);
+    if ((setup != null) && (setup.getGrid() != null))    // restore the game, and record its changes
+      journal = GameJournal.open(this, gameDir, timer);
+    if (state.get().isRunning())   // a restored game still has a time limit
+      scheduleExpiry( state.get().getStartTime() );
+
+    if (setup != null)
+      reloadTask = timer.scheduleWithFixedDelay( new Runnable() {
+          public void run()
+          {  checkFiles();  }
+        }, RELOAD_PERIOD, RELOAD_PERIOD, TimeUnit.MILLISECONDS);
+  }  // end of Game()
+
+
+
+  public String getID()
+  {  return gameID;  }
+
+
+  public void close()
+  // called when the servlet is stopped
+  {
+    ScheduledFuture<?> task = expiryTask;
+    if (task != null)
+      task.cancel(false);
+    if (reloadTask != null)
+      reloadTask.cancel(false);
+    if (journal != null)
+      journal.close();
+
+    GameSetup s = setup;
+    if (s != null)   // report the rejected requests
+      System.out.println("Game " + gameID + " limits -- " + s);
+  }  // end of close()
+
+
+
+  // --------------------- reloading the setup ---------------------------
+
+
+  private void checkFiles()
+  /* called by the timer; if the players file or map has changed, and
+     hasn't changed again since the last check (so it's probably been
+     completely written), then load it on the loader thread */
+  {
+    if (!setup.isChanged(playersFnm, mapFnm)) {
+      changedTime = 0;
+      return;
+    }
+    long modTime = new File(playersFnm).lastModified() + new File(mapFnm).lastModified();
+    if (modTime != changedTime) {   // wait until the files are left alone
+      changedTime = modTime;
+      return;
+    }
+    if ((modTime == failedTime) || !isReloading.compareAndSet(false, true))
+      return;     // don't try broken files again, or reload twice at once
+
+    final long mt = modTime;
+    try {
+      loader.execute( new Runnable() {
+        public void run()
+        {
+          try {
+            reload(mt);
+          }
+          finally {
+            isReloading.set(false);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)   // the servlet is stopping
+    {  isReloading.set(false);  }
+  }  // end of checkFiles()
+
+
+
+  private void reload(long modTime)
+  /* load a new setup which keeps the players' state, and swap it in;
+     requests which have already started carry on with the old setup */
+  {
+    GameSetup old = setup;
+    GameSetup s = GameSetup.load(playersFnm, mapFnm, mimeType, limits, old);
+    if (s == null) {    // keep using the old setup
+      failedTime = modTime;
+      return;
+    }
+    setup = s;
+
+    // the player indices may have changed, so send every player again
+    Player[] pls = s.getRoster().getPlayers();
+    for (Player p : pls)
+      p.markChanged(versions);
+    if (journal != null)
+      journal.rosterChanged(pls);
+    System.out.println("Game " + gameID + " reloaded: " + pls.length + " players");
+    wakeWatchers();
+  }  // end of reload()
+
+
+
+  // ------------------------ processing requests ----------------------------
+
+
+  public boolean processRequest(HttpServletRequest request,
+                             HttpServletResponse response) throws IOException
+  /* look at the cmd parameter to decide which message the player sent;
+     trails can still be read after the game is over.
+     Return false if the reply hasn't been finished yet, because it
+     will be finished later by a Watcher or a non-blocking write; this
+     can only happen if the request is asynchronous. */
+  {
+    GameSetup s = setup;    // used for the whole request, even if it's reloaded
+    Reply reply = new Reply(response, false);   // a text reply
+    if ("trail".equals( request.getParameter("cmd") ) || !checkGameOver(reply))
+      return processCmd(s, request, response, reply);
+    return true;
+  }  // end of processRequest()
+
+
+
+  private boolean checkGameOver(Reply reply) throws IOException
+  /* if the game is over, send a game-over reply and return true;
+     the end of the playing time is handled by the expiry task */
+  {
+    GameState st = state.get();
+    if (!st.isOver())
+      return false;
+    reply.sendGameOver( st.getMessage() );
+    return true;
+  }  // end of checkGameOver()
+
+
+
+  private boolean processCmd(GameSetup s, HttpServletRequest request,
+                         HttpServletResponse response, Reply reply) throws IOException
+  /*  Cmd formats:
+        FoxHoundsServlet?cmd=hi&uid=??[&tiles=true]
+        FoxHoundsServlet?cmd=tile&uid=??&z=??&x=??&y=??
+        FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??[&since=??]
+        FoxHoundsServlet?cmd=kill&uid=??&kid=??
+        FoxHoundsServlet?cmd=near&uid=??&dist=??
+        FoxHoundsServlet?cmd=watch&uid=??[&since=??][&timeout=??]
+        FoxHoundsServlet?cmd=trail&uid=??[&tid=??][&since=??]
+  */
+  {
+    // check the player ID first, which is used by all the commands
+    String uid = request.getParameter("uid");
+    Player p = (s == null) ? null : s.getRoster().findPlayer(uid);
+    if (p == null) {
+      reply.sendMessage("Player ID not found");  // request rejected
+      return true;
+    }
+
+    // player was found, now process command
+    String command = request.getParameter("cmd");
+    if (isTooSoon(s, p, command, reply))
+      return true;
+
+    if ("hi".equals(command))
+      return processHi(s, p, request, response);
+    else if ("tile".equals(command))
+      processTile(s, request, response, reply);
+    else if ("loc".equals(command))
+      processLoc(s, p, getGPSCoord( request.getParameter("lat")),
+                    getGPSCoord( request.getParameter("long")),
+                    getVersion( request.getParameter("since")), reply);
+    else if ("kill".equals(command))
+      processKill(s, p, request.getParameter("kid"), reply);
+    else if ("near".equals(command))
+      processNear(s, p, request.getParameter("dist"), reply);
+    else if ("watch".equals(command))
+      return processWatch(s, p, getVersion( request.getParameter("since")),
+                          getInt( request.getParameter("timeout")), request, reply);
+    else if ("trail".equals(command))
+      processTrail(s, p, request.getParameter("tid"),
+                      getVersion( request.getParameter("since")), response, reply);
+    else
+      reply.sendMessage("Command not understood: " + command);  // request rejected
+    return true;
+  }  // end of processCmd()
+
+
+
+  public boolean processBinary(HttpServletRequest request,
+                            HttpServletResponse response) throws IOException
+  /* A binary "loc", "kill" or "watch" message, in the format of LocCodec,
+     is in the request body. The reply is also binary. Return false
+     if the reply will be finished later (see processRequest()). */
+  {
+    GameSetup s = setup;
+    Reply reply = new Reply(response, true);
+    byte[] buf = new byte[LocCodec.MAX_REQUEST_LEN];
+    int len = readBody(request.getInputStream(), buf);
+    if (!LocCodec.isValidRequest(buf, len)) {
+      reply.sendMessage("Message not understood");
+      return true;
+    }
+    if (checkGameOver(reply))
+      return true;
+
+    Player p = (s == null) ? null : s.getRoster().findPlayer( LocCodec.getUID(buf) );
+    if (p == null)
+      reply.sendMessage("Player ID not found");  // request rejected
+    else if (isTooSoon(s, p, LocCodec.getCommandName(buf), reply))
+      return true;
+    else if (LocCodec.getCommand(buf) == LocCodec.CMD_LOC) {
+      long since = LocCodec.getSince(buf);
+      processLoc(s, p, LocCodec.getLat(buf), LocCodec.getLong(buf),
+                    (since < 0) ? 0 : since, reply);
+    }
+    else if (LocCodec.getCommand(buf) == LocCodec.CMD_WATCH)
+      return processWatch(s, p, LocCodec.getSince(buf),
+                          LocCodec.getWatchTimeout(buf, len), request, reply);
+    else   // must be a kill
+      processKill(s, p, LocCodec.getKID(buf), reply);
+    return true;
+  }  // end of processBinary()
+
+
+
+  private boolean isTooSoon(GameSetup s, Player p, String command, Reply reply) throws IOException
+  /* take a token from the player's bucket for this command; if there
+     are none left, send a "TOO SOON" reply and return true */
+  {
+    RateLimiter rl = (command == null) ? null : s.getLimiter(command);
+    if (rl == null)   // not a limited command
+      return false;
+    long wait = rl.acquire(p);
+    if (wait == 0)
+      return false;
+    reply.sendTooSoon(wait);
+    return true;
+  }  // end of isTooSoon()
+
+
+
+  private int readBody(InputStream in, byte[] buf) throws IOException
+  /* read the body into buf, returning its length, or -1 if it's
+     too long for buf */
+  {
+    int len = 0;
+    int n;
+    while ((len < buf.length) && ((n = in.read(buf, len, buf.length-len)) != -1))
+      len += n;
+    if ((len == buf.length) && (in.read() != -1))
+      return -1;
+    return len;
+  }  // end of readBody()
+
+
+
+  // ---------------------------- hi command ----------------------------------
+
+
+  private boolean processHi(GameSetup s, Player p, HttpServletRequest request,
+                         HttpServletResponse response) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=hi&uid=??[&tiles=true]
+       The server returns a map. If tiles is true, then it returns
+       the size of the map and its tiles instead:
+           TILES map-width map-height tile-size max-zoom
+       The client then downloads the tiles it needs with "tile" commands.
+     Return false if the map is still being sent.
+  */
+  {
+    if (p.isFox())
+      startGame();   // when the fox first says hi
+    if ("true".equals( request.getParameter("tiles") )) {
+      sendTilesInfo(s, response);
+      return true;
+    }
+    return sendMap(s, request, response);
+  }  // end of processHi()
+
+
+
+
+  private boolean sendMap(GameSetup s, HttpServletRequest req, HttpServletResponse resp)
+                                                      throws IOException
+  /* send the pre-encoded map bytes, or a 304 Not Modified reply
+     if the client already has this version of the map; return
+     false if the map is being written without blocking */
+  {
+    if ((s.getMapImage() == null) || (s.getMapImage().getMimeType() == null)) {
+      PrintWriter output = resp.getWriter();
+      output.println("Map not found");  // request rejected
+      output.close();
+      return true;
+    }
+    return s.getMapImage().send(req, resp);
+  }  // end of sendMap()
+
+
+
+  private void sendTilesInfo(GameSetup s, HttpServletResponse resp) throws IOException
+  {
+    PrintWriter output = resp.getWriter();
+    if (s.getMapTiles() == null)
+      output.println("Map not found");  // request rejected
+    else
+      output.println("TILES " + s.getMapImage().getWidth() + " " + s.getMapImage().getHeight() + " " +
+                     MapCoords.TILE_SIZE + " " + s.getMapTiles().getMaxZoom());
+    output.close();
+  }  // end of sendTilesInfo()
+
+
+
+  // ---------------------------- tile command ----------------------------------
+
+
+  private void processTile(GameSetup s, HttpServletRequest request, HttpServletResponse response,
+                           Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=tile&uid=??&z=??&x=??&y=??
+        - send back the JPEG tile at zoom level z, column x, and row y
+  */
+  {
+    int z = getInt( request.getParameter("z") );
+    int x = getInt( request.getParameter("x") );
+    int y = getInt( request.getParameter("y") );
+    if ((s.getMapTiles() == null) || !s.getMapTiles().send(z, x, y, request, response))
+      reply.sendMessage("Tile not found");
+  }  // end of processTile()
+
+
+
+  private int getInt(String intStr)
+  // convert string to int, or -1 if it isn't a number
+  {
+    if (intStr == null)
+      return -1;
+    try {
+      return Integer.parseInt(intStr);
+    }
+    catch (NumberFormatException ex)
+    {  return -1;  }
+  }  // end of getInt()
+
+
+
+  // ---------------------------- loc command ----------------------------------
+
+
+  private void processLoc(GameSetup s, Player p, double lat, double lng, long since,
+                          Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=loc&uid=??&lat=??&long=??[&since=??]
+        - receive player's current GPS (latitude, longitude) location
+        - send back all players details:
+               id x y player-state
+                   :
+        - if there's a since argument, only send back the details of
+          the players that have changed since that version, and
+          the current version:
+               LOCS version
+               index id x y player-state
+                   :
+          A since of 0 gets the details of every player.
+  */
+  { // convert (lat,long) to map image coordinates
+    int yCoord = s.getMapCoords().lat2y(lat);
+    int xCoord = s.getMapCoords().lon2x(lng);
+
+    if ((s.getGrid() == null) ||
+        (xCoord < 0) || (xCoord >= s.getMapImage().getWidth()) ||
+        (yCoord < 0) || (yCoord >= s.getMapImage().getHeight()) )
+      reply.sendMessage("You've dropped off the map\n" +
+                        "lat: " + lat + " --> " + yCoord + "\n" +
+                        "long: " + lng + " --> " + xCoord);
+    else {
+      if (s.getGrid().move(p, xCoord, yCoord)) {  // store new coordinates for this player
+        p.addToTrail( System.currentTimeMillis() );
+        p.markChanged(versions);
+        if (journal != null)
+          journal.logLoc(p);
+        wakeWatchers();
+      }
+      sendLocations(s, p, s.getRoster().getPlayers(), since, reply);   // send back players details
+    }
+  }  // end of processLoc()
+
+
+
+  private double getGPSCoord(String coordStr)
+  // convert string to double
+  {
+    if (coordStr == null)
+      return -1.0;
+     double gpsCoord = -1.0;
+     try {
+       gpsCoord = Double.parseDouble(coordStr);
+     }
+     catch (NumberFormatException ex){}
+     return gpsCoord;
+  }  // end of getGPSCoord()
+
+
+
+  private long getVersion(String versionStr)
+  // convert string to a version number, or -1 if there isn't one
+  {
+    if (versionStr == null)
+      return -1;
+    try {
+      return Long.parseLong(versionStr);
+    }
+    catch (NumberFormatException ex)
+    {  return -1;  }
+  }  // end of getVersion()
+
+
+
+  private void sendLocations(GameSetup s, Player p, Player[] pls, long since, Reply reply)
+                                                              throws IOException
+  /* the player locations are only sent if the player's "locs" limit
+     allows it; by default a fox can get them at any time, but a hound
+     must wait 2 minutes between location requests.
+     The version is read before the players, so a change made while
+     the details are being sent will be sent again next time. */
+  {
+    long wait = s.getLocsLimiter().acquire(p);
+    if (wait == 0)
+      reply.sendLocations(pls, versions.get(), since);
+    else
+      reply.sendTooSoon(wait);   // loc request is too soon
+  }  // end of sendLocations()
+
+
+
+  // ---------------------------- watch command ----------------------------------
+
+
+  private boolean processWatch(GameSetup s, Player p, long since, long timeout,
+                            HttpServletRequest request, Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=watch&uid=??[&since=??][&timeout=??]
+        - wait until a player changes after the since version, and then
+          send back the changed players details, in the same format as
+          "loc" with a since argument
+        - if nothing changes within timeout ms (or WATCH_TIMEOUT ms, if
+          that's shorter or there's no timeout), then send back the since
+          version and no player details. The client sends the time left
+          before its next "loc", so a watch doesn't delay it.
+        - a hound must still wait for its "locs" limit between
+          location requests, so may be told it's too soon
+     Return false if the request has been parked, so the Watcher
+     will finish it.
+  */
+  {
+    if (since < 0)
+      since = 0;
+    if ((timeout < 0) || (timeout > WATCH_TIMEOUT))   // none given, or too long
+      timeout = WATCH_TIMEOUT;
+    long wait = s.getLocsLimiter().check(p);
+    if (wait > 0)
+      reply.sendTooSoon(wait);
+    else if ((versions.get() > since) || (timeout == 0) || !request.isAsyncSupported())
+      sendLocations(s, p, s.getRoster().getPlayers(), since, reply);  // answer at once
+    else {   // park the request until something changes
+      Watcher w;
+      if (request.isAsyncStarted()) {
+        /* started by the servlet, which is no longer running on the
+           container's thread, so the watcher is attached to the
+           forwarder added by the servlet */
+        AsyncForwarder fw = (AsyncForwarder) request.getAttribute(AsyncForwarder.ATTRIBUTE);
+        if (fw == null) {
+          sendLocations(s, p, s.getRoster().getPlayers(), since, reply);  // can't wait
+          return true;
+        }
+        w = new Watcher(this, request.getAsyncContext(), p, since, reply.isBinary());
+        fw.setTarget(w);
+      }
+      else {   // still on the container's thread
+        AsyncContext ac = request.startAsync();
+        ac.setTimeout(2*WATCH_TIMEOUT);   // a backstop; the timer answers first
+        w = new Watcher(this, ac, p, since, reply.isBinary());
+        ac.addListener(w);
+      }
+      watchers.add(w);
+      scheduleWatchTimeout(w, timeout);
+      if ((versions.get() > since) || state.get().isOver())
+        wakeWatchers();   // a change was made while the watcher was being added
+      return false;
+    }
+    return true;
+  }  // end of processWatch()
+
+
+
+  private void scheduleWatchTimeout(final Watcher w, long timeout)
+  /* answer the watcher with no changes after timeout ms, using the
+     timer, so the asynchronous context's timeout never has to be
+     changed from this thread */
+  {
+    try {
+      w.setTimeoutTask( timer.schedule( new Runnable() {
+        public void run()
+        {
+          removeWatcher(w);
+          if (w.claim())   // not already answered
+            w.answer(false);
+        }
+      }, timeout, TimeUnit.MILLISECONDS) );
+    }
+    catch (RejectedExecutionException e) {   // the servlet is stopping
+      removeWatcher(w);
+      if (w.claim())
+        w.answer(false);
+    }
+  }  // end of scheduleWatchTimeout()
+
+
+
+  private void wakeWatchers()
+  // answer all the waiting watchers, without blocking this thread
+  {
+    Watcher w;
+    while ((w = watchers.poll()) != null) {
+      if (w.claim())   // not already timed out
+        w.answer(true);
+    }
+  }  // end of wakeWatchers()
+
+
+  public void removeWatcher(Watcher w)
+  {  watchers.remove(w);  }
+
+
+
+  public void answerWatcher(Watcher w, Reply reply, boolean hasChanged)
+                                                         throws IOException
+  // called by the watcher to send its reply
+  {
+    GameState st = state.get();
+    if (st.isOver())
+      reply.sendGameOver( st.getMessage() );
+    else if (hasChanged) {
+      /* the watcher may have been added before a reload, so use
+         the player's copy in the current setup */
+      GameSetup s = setup;
+      Player p = s.getRoster().findPlayer( w.getPlayer().getID() );
+      if (p == null)
+        reply.sendMessage("Player ID not found");   // removed by the reload
+      else
+        sendLocations(s, p, s.getRoster().getPlayers(), w.getSince(), reply);
+    }
+    else    // nothing has changed, so the version stays the same
+      reply.sendLocations(new Player[0], w.getSince(), w.getSince());
+  }  // end of answerWatcher()
+
+
+
+  // ---------------------------- near command ----------------------------------
+
+
+  private void processNear(GameSetup s, Player p, String distStr, Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=near&uid=??&dist=??
+        - send back the details of the players within dist pixels
+          of the player's last location, in the same format as for "loc"
+  */
+  {
+    int dist = getInt(distStr);
+    if (dist < 0)
+      reply.sendMessage("Distance not understood");
+    else if ((s.getGrid() == null) || !p.hasLocation())
+      reply.sendMessage("Location unknown");
+    else {
+      ArrayList<Player> near = s.getGrid().findNear(p.getX(), p.getY(), dist);
+      sendLocations(s, p, near.toArray( new Player[near.size()] ), -1, reply);
+    }
+  }  // end of processNear()
+
+
+
+  // ---------------------------- trail command ----------------------------------
+
+
+  private void processTrail(GameSetup s, Player p, String tid, long since,
+                     HttpServletResponse response, Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=trail&uid=??[&tid=??][&since=??]
+        - send back the trail of player tid (or of the player, if there's
+          no tid), starting after the since time (in ms):
+               TRAIL id number-of-samples
+               time x y
+                  :
+        - while the game is running, a player can only see their own trail
+  */
+  {
+    Player target = (tid == null) ? p : s.getRoster().findPlayer(tid);
+    if (target == null)
+      reply.sendMessage("Target not found");
+    else if ((target != p) && !state.get().isOver())
+      reply.sendMessage("Trails can be seen after the game");
+    else {
+      Trail trail = target.getTrail();
+      long[] ts = new long[trail.getCapacity()];
+      int[] xs = new int[ts.length];
+      int[] ys = new int[ts.length];
+      int n = trail.read(since, ts, xs, ys);
+
+      PrintWriter output = response.getWriter();
+      output.println("TRAIL " + target.getID() + " " + n);
+      for (int i=0; i < n; i++)
+        output.println(ts[i] + " " + xs[i] + " " + ys[i]);
+      output.close();
+    }
+  }  // end of processTrail()
+
+
+
+  private void saveTrails()
+  // save all the trails, using the timer thread rather than a request thread
+  {
+    try {
+      timer.execute( new Runnable() {
+        public void run()
+        {
+          File trailsFile = new File(gameDir, TRAILS_FNM);
+          long startTime = state.get().getStartTime();
+          long baseTime = (startTime == -1) ? System.currentTimeMillis() : startTime*1000;
+          try {
+            Trail.save(trailsFile, setup.getRoster().getPlayers(), baseTime);
+            System.out.println("Saved trails to " + trailsFile);
+          }
+          catch (IOException e)
+          {  System.out.println("Could not save trails to " + trailsFile + ": " + e);  }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {}   // the servlet is stopping
+  }  // end of saveTrails()
+
+
+
+  // ---------------------------- kill command ----------------------------------
+
+
+  private void processKill(GameSetup s, Player p, String kid, Reply reply) throws IOException
+  /* Message format: FoxHoundsServlet?cmd=kill&uid=??&kid=??
+        - process kill request
+  */
+  { Player target = s.getRoster().findPlayer(kid);
+                   // get the player who is meant to be killed
+
+    if (target == null)
+      reply.sendMessage("Target not found");
+    else if (!p.isAlive())
+      reply.sendMessage("Zombie player not allowed");
+    else if (!target.isAlive())
+      reply.sendMessage("Target already dead");
+    else if (!p.hasLocation() ||
+             (target.distSq(p.getX(), p.getY()) > KILL_RADIUS*KILL_RADIUS))
+      reply.sendMessage("Target too far away");   // or a location is unknown
+    else
+      killPlayer(s, p, target, reply);
+  }  // end of processKill()
+
+
+
+  private void killPlayer(GameSetup s, Player p, Player target, Reply reply) throws IOException
+  /* try to have player p kill the target player; report the result.
+     Only the thread which kills the target may end the game, and if
+     two winning kills happen together, the state machine picks one, so
+     both players are sent the same game-over message */
+  {
+    GameState st = state.get();
+    if (st.isOver())   // another kill ended the game first
+      reply.sendGameOver( st.getMessage() );
+    else if (!(p.isFox() && target.isHound()) && !(p.isHound() && target.isFox()))
+      reply.sendMessage("Kill rejected");
+    else if (!s.getRoster().killPlayer(target))   // another kill got there first
+      reply.sendMessage("Target already dead");
+    else {
+      markKilled(target);
+      killInNewSetup(s, target);
+      if (p.isHound())    // hound killed the fox
+        reply.sendGameOver( endGame("Hound " + p.getID() + " wins").getMessage() );
+      else if (s.getRoster().allHoundsDead())   // fox killed the last hound
+        reply.sendGameOver( endGame("Fox wins").getMessage() );
+      else {
+        wakeWatchers();   // the target has died
+        reply.sendMessage("Hound killed");
+      }
+    }
+  }  // end of killPlayer()
+
+
+
+  private void killInNewSetup(GameSetup s, Player target)
+  /* if the setup was reloaded while the target was being killed, the
+     new setup may have copied the target while it was still alive, so
+     kill it there too */
+  {
+    GameSetup curr = setup;
+    if (curr == s)
+      return;
+    Player newTarget = curr.getRoster().findPlayer( target.getID() );
+    if ((newTarget != null) && curr.getRoster().killPlayer(newTarget))
+      markKilled(newTarget);
+  }  // end of killInNewSetup()
+
+
+
+  private void markKilled(Player target)
+  {
+    target.markChanged(versions);
+    if (journal != null)
+      journal.logKill(target);
+  }  // end of markKilled()
+
+
+
+  // ------------------------ game state ----------------------------
+
+
+  private void startGame()
+  /* start the game if it hasn't already started, and schedule the
+     end of its playing time */
+  {
+    GameState st = state.get();
+    if (st.isStarted() || st.isOver())
+      return;
+    long startTime = System.currentTimeMillis()/1000;   // in seconds
+    if (state.compareAndSet(st, st.start(startTime))) {
+      if (journal != null)
+        journal.logStart(startTime);
+      scheduleExpiry(startTime);
+    }
+  }  // end of startGame()
+
+
+
+  private void scheduleExpiry(long startTime)
+  // end the game GAME_TIME_LENGTH secs after startTime
+  {
+    long delay = (startTime + GAME_TIME_LENGTH)*1000 - System.currentTimeMillis();
+    try {
+      expiryTask = timer.schedule( new Runnable() {
+                      public void run()
+                      {  endGame("Playing time ended:\nfox wins");  }
+                   }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException e) {}   // the servlet is stopping
+  }  // end of scheduleExpiry()
+
+
+
+  private GameState endGame(String msg)
+  /* move to the game-over state, unless another thread has already
+     done so; return the game-over state which was stored */
+  {
+    while (true) {
+      GameState st = state.get();
+      if (st.isOver())
+        return st;    // someone else ended the game
+      GameState over = st.end(msg);
+      if (state.compareAndSet(st, over)) {
+        if (journal != null)
+          journal.logGameOver(msg);
+        if (setup != null)
+          saveTrails();
+        ScheduledFuture<?> task = expiryTask;
+        if (task != null)
+          task.cancel(false);
+        wakeWatchers();
+        return over;
+      }
+    }
+  }  // end of endGame()
+
+
+
+  // ------------------- journal access and restoring --------------------
+
+
+  public Player[] getPlayers()
+  {  return setup.getRoster().getPlayers();  }
+
+  public GameState getState()
+  {  return state.get();  }
+
+
+
+  /* The restore methods are only called by GameJournal while the
+     game is being created, before it receives any requests. */
+
+  public void restoreStart(long t)
+  {  state.set( state.get().start(t) );  }
+
+
+  public void restoreLoc(int index, int x, int y)
+  {
+    GameSetup s = setup;
+    Player[] pls = s.getRoster().getPlayers();
+    if ((index >= 0) && (index < pls.length) && s.getGrid().move(pls[index], x, y))
+      pls[index].markChanged(versions);
+  }  // end of restoreLoc()
+
+
+  public void restoreKill(int index)
+  {
+    GameSetup s = setup;
+    Player[] pls = s.getRoster().getPlayers();
+    if ((index >= 0) && (index < pls.length) && s.getRoster().killPlayer(pls[index]))
+      pls[index].markChanged(versions);
+  }  // end of restoreKill()
+
+
+  public void restoreGameOver(String msg)
+  {  state.set( state.get().end(msg) );  }
+
+
+} // end of Game class
@@ -0,0 +1,511 @@
+
+// GameJournal.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A record of a game's changes, kept on disk so that the game can
+   be restored if the servlet is restarted in the middle of play.
+
+   The state of the game is stored in two files in the game's directory:
+
+     * SNAPSHOT_FNM holds a copy of the whole game: its start time,
+       game-over state, and each player's location and if alive.
+
+     * JOURNAL_FNM holds the changes made since the snapshot, as a
+       list of records in a memory-mapped file. A record is:
+           length(int16)  type(byte)  arguments ...  COMMIT
+       The COMMIT byte is written last, so a record which was only
+       partly written when the server stopped is ignored.
+
+   When a game is created, the snapshot is loaded and then the
+   journal's records are replayed on top of it. Every record only sets
+   a value (e.g. a player's position), so replaying a record that's
+   already in the snapshot does no harm.
+
+   Writing to the mapped file only copies bytes into memory, and the
+   file is forced to disk once every FLUSH_PERIOD ms (a group commit).
+   "loc" updates are the most common change, but only a player's latest
+   location matters, so they are also grouped: each player's newest
+   position is kept in pendingPos[], and is written once per flush.
+   The "hi", "kill" and game-over records are written immediately.
+
+   A new snapshot is taken when the journal is nearly full, or every
+   SNAPSHOT_PERIOD ms if the game has changed, and then the journal is
+   emptied. The snapshot is written to a temporary file and renamed, so
+   there is always one complete snapshot on disk.
+
+   The files also store a hash of the player IDs, and are ignored if
+   the players file has been changed since they were written. When the
+   game reloads its players file, rosterChanged() takes a snapshot of
+   the new roster, so the journal's player indices are never mixed up.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+public class GameJournal
+{
+  private static final String JOURNAL_FNM = "journal.dat";
+  private static final String SNAPSHOT_FNM = "snapshot.dat";
+
+  private static final int MAGIC = 0x46484A31;    // "FHJ1"
+  private static final int CAPACITY = 1024*1024;   // size of the mapped journal
+  private static final int HEADER_LEN = 16;     // magic(int32)  roster hash(int32)  unused
+  private static final int SNAPSHOT_LIMIT = (CAPACITY*3)/4;
+       // take a snapshot when the journal is this full
+
+  private static final long FLUSH_PERIOD = 1000;        // 1 sec, in ms
+  private static final long SNAPSHOT_PERIOD = 5*60*1000;   // 5 mins, in ms
+
+  // record types
+  private static final byte REC_START = 1;   // start time(int64)
+  private static final byte REC_LOC = 2;     // index(int16)  x(int32)  y(int32)
+  private static final byte REC_KILL = 3;    // index(int16)
+  private static final byte REC_OVER = 4;    // message(UTF)
+
+  private static final byte COMMIT = 0x5A;
+
+  private static final long NO_POS = Long.MIN_VALUE;   // no pending location
+
+  private final Game game;
+  private final File journalFile, snapshotFile;
+  private int rosterHash;
+
+  private RandomAccessFile raf;
+  private MappedByteBuffer buf;    // the journal; its position is the end of the records
+  private volatile Player[] players;   // the roster the indices refer to
+  private volatile AtomicLongArray pendingPos;   // newest unwritten location of each player
+
+  private boolean isDirty = false;    // have records been written since the last force?
+  private boolean hasChanged = false;   // has the game changed since the last snapshot?
+  private long snapshotTime;      // in ms
+  private long numDropped = 0;    // records lost since the journal became full
+  private ScheduledFuture<?> flushTask = null;
+
+
+
+  private GameJournal(Game g, File dir, Player[] pls)
+  {
+    game = g;
+    journalFile = new File(dir, JOURNAL_FNM);
+    snapshotFile = new File(dir, SNAPSHOT_FNM);
+    rosterHash = hashIDs(pls);
+    players = pls;
+    pendingPos = makePending(pls.length);
+    snapshotTime = System.currentTimeMillis();
+  }  // end of GameJournal()
+
+
+
+  public static GameJournal open(Game g, File dir, ScheduledExecutorService timer)
+  /* restore the game from its snapshot and journal, then start
+     recording its changes; return null if the journal can't be used */
+  {
+    final GameJournal j = new GameJournal(g, dir, g.getPlayers());
+    try {
+      j.loadSnapshot();
+      j.mapJournal();
+      j.replay();
+    }
+    catch (IOException e)
+    {  System.out.println("Could not open journal in " + dir + ": " + e);
+       j.close();
+       return null;
+    }
+    j.flushTask = timer.scheduleWithFixedDelay( new Runnable() {
+                    public void run()
+                    {  j.flush();  }
+                  }, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    return j;
+  }  // end of open()
+
+
+
+  private static AtomicLongArray makePending(int numPlayers)
+  {
+    AtomicLongArray pp = new AtomicLongArray(numPlayers);
+    for (int i=0; i < numPlayers; i++)
+      pp.set(i, NO_POS);
+    return pp;
+  }  // end of makePending()
+
+
+
+  private static int hashIDs(Player[] pls)
+  // a hash of the player IDs, in roster order
+  {
+    int h = pls.length;
+    for (int i=0; i < pls.length; i++)
+      h = 31*h + pls[i].getID().hashCode();
+    return h;
+  }  // end of hashIDs()
+
+
+
+  // ---------------------- restoring the game ---------------------------
+
+
+  private void loadSnapshot() throws IOException
+  // restore the game from the snapshot file, if it's for this roster
+  {
+    if (!snapshotFile.exists())
+      return;
+
+    DataInputStream in = new DataInputStream( new BufferedInputStream(
+                                     new FileInputStream(snapshotFile) ));
+    try {
+      if ((in.readInt() != MAGIC) || (in.readInt() != rosterHash)) {
+        System.out.println("Ignoring old snapshot " + snapshotFile);
+        return;
+      }
+      long startTime = in.readLong();
+      if (startTime != -1)
+        game.restoreStart(startTime);
+
+      boolean isOver = in.readBoolean();
+      String msg = in.readUTF();
+
+      int numPlayers = in.readInt();
+      Player[] pls = game.getPlayers();
+      for (int i=0; i < numPlayers; i++) {
+        boolean isAlive = in.readBoolean();
+        int x = in.readInt();
+        int y = in.readInt();
+        if (i < pls.length) {
+          if (!isAlive)
+            game.restoreKill(i);
+          if ((x != -1) || (y != -1))
+            game.restoreLoc(i, x, y);
+        }
+      }
+      if (isOver)
+        game.restoreGameOver(msg);
+    }
+    catch (EOFException e)
+    {  System.out.println("Snapshot " + snapshotFile + " is incomplete");  }
+    finally {
+      in.close();
+    }
+  }  // end of loadSnapshot()
+
+
+
+  private void mapJournal() throws IOException
+  /* map the journal file into memory; a new file, or one for
+     a different roster, is given a new header */
+  {
+    raf = new RandomAccessFile(journalFile, "rw");
+    buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+    if ((buf.getInt(0) != MAGIC) || (buf.getInt(4) != rosterHash)) {
+      if (buf.getInt(0) != 0)
+        System.out.println("Ignoring old journal " + journalFile);
+      clearRecords(CAPACITY);
+      buf.putInt(0, MAGIC);
+      buf.putInt(4, rosterHash);
+    }
+    buf.position(HEADER_LEN);
+  }  // end of mapJournal()
+
+
+
+  private void replay()
+  /* apply the journal's complete records to the game, stopping at the
+     first empty or partly written record. Anything after that is cleared,
+     so new records are appended after the last complete one */
+  {
+    int numRecs = 0;
+    while (true) {
+      int pos = buf.position();
+      if (pos + 3 > CAPACITY)
+        break;
+      int len = buf.getShort(pos) & 0xFFFF;
+      int end = pos + 2 + len;    // position of the COMMIT byte
+      if ((len == 0) || (end >= CAPACITY) || (buf.get(end) != COMMIT))
+        break;
+      applyRecord(pos+2);
+      buf.position(end+1);
+      numRecs++;
+    }
+    clearRecords(CAPACITY);   // remove any partly written record
+    if (numRecs > 0)
+      System.out.println("Replayed " + numRecs + " journal records for game " + game.getID());
+  }  // end of replay()
+
+
+
+  private void applyRecord(int pos)
+  {
+    byte type = buf.get(pos);
+    if (type == REC_START)
+      game.restoreStart( buf.getLong(pos+1) );
+    else if (type == REC_LOC)
+      game.restoreLoc( buf.getShort(pos+1), buf.getInt(pos+3), buf.getInt(pos+7) );
+    else if (type == REC_KILL)
+      game.restoreKill( buf.getShort(pos+1) );
+    else if (type == REC_OVER) {
+      int len = buf.getShort(pos+1) & 0xFFFF;
+      byte[] bytes = new byte[len];
+      for (int i=0; i < len; i++)
+        bytes[i] = buf.get(pos+3+i);
+      try {
+        game.restoreGameOver( new String(bytes, "UTF-8") );
+      }
+      catch (UnsupportedEncodingException e) {}
+    }
+  }  // end of applyRecord()
+
+
+
+  private void clearRecords(int limit)
+  // zero the journal from its current position up to limit
+  {
+    for (int i = Math.max(buf.position(), HEADER_LEN); i < limit; i++)
+      buf.put(i, (byte) 0);
+  }  // end of clearRecords()
+
+
+
+  // ---------------------- recording changes ---------------------------
+
+
+  public void logStart(long startTime)
+  {
+    byte[] rec = new byte[9];
+    rec[0] = REC_START;
+    ByteBuffer.wrap(rec).putLong(1, startTime);
+    append(rec);
+  }  // end of logStart()
+
+
+  public void logLoc(Player p)
+  /* remember the player's newest location until the next flush. A
+     player from a roster which has just been replaced is ignored, since
+     its index may belong to someone else now; pendingPos is read before
+     players, since rosterChanged() changes them in the opposite order */
+  {
+    AtomicLongArray pp = pendingPos;
+    Player[] pls = players;
+    int i = p.getIndex();
+    if ((i < pp.length()) && (i < pls.length) && (pls[i] == p))
+      pp.set(i, p.getPos());
+  }  // end of logLoc()
+
+
+  public void logKill(Player p)
+  {
+    Player[] pls = players;
+    int i = p.getIndex();
+    if ((i >= pls.length) || (pls[i] != p))   // from an old roster
+      return;
+    byte[] rec = new byte[3];
+    rec[0] = REC_KILL;
+    ByteBuffer.wrap(rec).putShort(1, (short) p.getIndex());
+    append(rec);
+  }  // end of logKill()
+
+
+  public void logGameOver(String msg)
+  {
+    try {
+      byte[] msgBytes = msg.getBytes("UTF-8");
+      byte[] rec = new byte[3 + msgBytes.length];
+      rec[0] = REC_OVER;
+      ByteBuffer.wrap(rec).putShort(1, (short) msgBytes.length);
+      System.arraycopy(msgBytes, 0, rec, 3, msgBytes.length);
+      append(rec);
+    }
+    catch (UnsupportedEncodingException e) {}
+  }  // end of logGameOver()
+
+
+
+  private synchronized void append(byte[] rec)
+  /* add a record to the end of the journal, taking a snapshot
+     first if there's no room. If the snapshot can't be saved (e.g.
+     the disk is full), the journal stays full, and records are
+     dropped until flush() manages to take one: the change has already
+     been made in memory, so the request carries on, but it won't
+     survive a restart */
+  {
+    if (buf == null)    // the journal has been closed
+      return;
+    if (buf.position() + rec.length + 3 > CAPACITY) {
+      if (numDropped == 0)    // flush() retries after that
+        takeSnapshot();
+      if (buf.position() + rec.length + 3 > CAPACITY) {
+        numDropped++;
+        if ((numDropped == 1) || (numDropped % 10000 == 0))
+          System.out.println("Journal full for game " + game.getID() +
+                             ": dropped " + numDropped + " records");
+        return;
+      }
+    }
+
+    int pos = buf.position();
+    buf.putShort(pos, (short) rec.length);
+    for (int i=0; i < rec.length; i++)
+      buf.put(pos+2+i, rec[i]);
+    buf.put(pos+2+rec.length, COMMIT);   // the record is now complete
+    buf.position(pos + 3 + rec.length);
+    isDirty = true;
+    hasChanged = true;
+  }  // end of append()
+
+
+
+  private void writePendingLocs()
+  // write a record for each player who moved since the last flush
+  {
+    byte[] rec = new byte[11];
+    ByteBuffer bb = ByteBuffer.wrap(rec);
+    rec[0] = REC_LOC;
+    AtomicLongArray pp = pendingPos;
+    for (int i=0; i < pp.length(); i++) {
+      long pos = pp.getAndSet(i, NO_POS);
+      if (pos != NO_POS) {
+        bb.putShort(1, (short) i);
+        bb.putInt(3, Player.posX(pos));
+        bb.putInt(7, Player.posY(pos));
+        append(rec);
+      }
+    }
+  }  // end of writePendingLocs()
+
+
+
+  private synchronized void flush()
+  /* the group commit, called every FLUSH_PERIOD ms: write the
+     pending locations, force the journal to disk, and take a new
+     snapshot if it's time for one */
+  {
+    if (buf == null)
+      return;
+    try {
+      writePendingLocs();
+      if (isDirty) {
+        buf.force();
+        isDirty = false;
+      }
+      if ((buf.position() > SNAPSHOT_LIMIT) ||
+          (hasChanged && (System.currentTimeMillis() - snapshotTime > SNAPSHOT_PERIOD)))
+        takeSnapshot();
+    }
+    catch (Exception e)   // don't let an error stop the timer
+    {  System.out.println("Journal flush failed for game " + game.getID() + ": " + e);  }
+  }  // end of flush()
+
+
+
+  public synchronized void rosterChanged(Player[] pls)
+  /* called when the game reloads its players file: write the old
+     players' locations, switch to the new roster, and then save it in
+     a snapshot, which empties the journal of the old indices. The
+     journal's header is changed last, so if the server stops part way
+     through, the old journal is ignored rather than replayed */
+  {
+    if (buf == null)
+      return;
+    writePendingLocs();
+    players = pls;
+    pendingPos = makePending(pls.length);
+    rosterHash = hashIDs(pls);
+    takeSnapshot();
+    buf.putInt(4, rosterHash);
+    buf.force();
+  }  // end of rosterChanged()
+
+
+
+  // ---------------------- snapshots ---------------------------
+
+
+  private synchronized void takeSnapshot()
+  /* save the whole game, and then empty the journal. If the server
+     stops before the journal is emptied, its records are replayed
+     over the new snapshot, which does no harm */
+  {
+    try {
+      writeSnapshot();
+    }
+    catch (IOException e)
+    {  System.out.println("Could not save snapshot " + snapshotFile + ": " + e);
+       return;    // keep the journal, since it's still needed
+    }
+
+    if (numDropped > 0) {
+      System.out.println("Journal for game " + game.getID() + " has room again after dropping " +
+                                                                     numDropped + " records");
+      numDropped = 0;
+    }
+    int end = buf.position();
+    buf.position(HEADER_LEN);
+    clearRecords(end);
+    buf.force();
+    isDirty = false;
+    hasChanged = false;
+    snapshotTime = System.currentTimeMillis();
+  }  // end of takeSnapshot()
+
+
+
+  private void writeSnapshot() throws IOException
+  // write to a temporary file first, and then replace the old snapshot
+  {
+    File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream(fos) );
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(rosterHash);
+      GameState st = game.getState();
+      out.writeLong( st.getStartTime() );
+      out.writeBoolean( st.isOver() );
+      out.writeUTF( (st.getMessage() == null) ? "" : st.getMessage() );
+
+      Player[] pls = game.getPlayers();
+      out.writeInt(pls.length);
+      for (int i=0; i < pls.length; i++) {
+        long pos = pls[i].getPos();
+        out.writeBoolean( pls[i].isAlive() );
+        out.writeInt( Player.posX(pos) );
+        out.writeInt( Player.posY(pos) );
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+
+    if (!tmpFile.renameTo(snapshotFile)) {   // some platforms won't replace a file
+      snapshotFile.delete();
+      if (!tmpFile.renameTo(snapshotFile))
+        throw new IOException("Could not rename " + tmpFile);
+    }
+  }  // end of writeSnapshot()
+
+
+
+  public synchronized void close()
+  // write any pending changes, and stop recording
+  {
+    if (flushTask != null)
+      flushTask.cancel(false);
+    if (buf != null) {
+      writePendingLocs();
+      buf.force();
+      buf = null;
+    }
+    try {
+      if (raf != null)
+        raf.close();
+    }
+    catch (IOException e) {}
+    raf = null;
+  }  // end of close()
+
+}  // end of GameJournal class
@@ -0,0 +1,159 @@
+
+// GameRegistry.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* Holds all the games run by FoxHoundsServlet, keyed by game ID.
+
+   The default game (DEFAULT_GAME) uses the players file and map
+   in the servlet's 'home' directory. Other games are stored in
+   subdirectories of GAMES_DIR, one directory per game, and
+   the directory's name is the game's ID:
+
+       games/
+          park/     players.txt  map.jpg
+          campus/   players.txt  map.jpg
+           :
+
+   The request limits (see Game and RateLimiter) can be changed in
+   a LIMITS_FNM properties file in the 'home' directory, and a game
+   directory may have its own LIMITS_FNM, which overrides it.
+
+   The games are independent, so a request only ever touches the
+   Game object it is sent to. They do share one timer thread, which
+   is used for background jobs such as writing their journals, and
+   one loader thread, which reloads a game's players file and map
+   when they are changed.
+*/
+
+import javax.servlet.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+public class GameRegistry
+{
+  public static final String DEFAULT_GAME = "default";
+
+  private static final String GAMES_DIR = "games";
+  private static final String PLAYERS_FNM = "players.txt";
+  private static final String MAP_FNM = "map.jpg";
+  private static final String LIMITS_FNM = "limits.properties";
+
+  private ConcurrentHashMap<String, Game> games =
+                                new ConcurrentHashMap<String, Game>();
+
+  private final ScheduledExecutorService timer =
+          Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+             public Thread newThread(Runnable r)
+             {  Thread t = new Thread(r, "FoxHounds timer");
+                t.setDaemon(true);
+                return t;
+             }
+          });
+
+  private final ExecutorService loader =
+          Executors.newSingleThreadExecutor( new ThreadFactory() {
+             public Thread newThread(Runnable r)
+             {  Thread t = new Thread(r, "FoxHounds loader");
+                t.setDaemon(true);
+                return t;
+             }
+          });
+
+
+
+  public void loadGames(ServletContext sc)
+  // load the default game, and any games in the GAMES_DIR subdirectories
+  {
+    Properties limits = loadLimits(sc.getRealPath(LIMITS_FNM), new Properties());
+
+    String playersFnm = sc.getRealPath(PLAYERS_FNM);
+    String mapFnm = sc.getRealPath(MAP_FNM);
+    if ((playersFnm != null) && new File(playersFnm).exists())
+      addGame( new Game(DEFAULT_GAME, playersFnm, mapFnm, sc.getMimeType(mapFnm),
+                        timer, loader, limits) );
+
+    String gamesDirNm = sc.getRealPath(GAMES_DIR);
+    if (gamesDirNm == null)
+      return;
+    File[] gameDirs = new File(gamesDirNm).listFiles();
+    if (gameDirs == null)    // there's no games directory
+      return;
+
+    for (File dir : gameDirs) {
+      File playersFile = new File(dir, PLAYERS_FNM);
+      if (dir.isDirectory() && playersFile.exists()) {
+        if (games.containsKey(dir.getName())) {   // don't open its journal or start its timers
+          System.out.println("Game " + dir.getName() + " already exists");
+          continue;
+        }
+        File mapFile = new File(dir, MAP_FNM);
+        Properties gameLimits = loadLimits(new File(dir, LIMITS_FNM).getPath(), limits);
+        addGame( new Game(dir.getName(), playersFile.getPath(), mapFile.getPath(),
+                          sc.getMimeType(mapFile.getPath()), timer, loader, gameLimits) );
+      }
+    }
+  }  // end of loadGames()
+
+
+
+  private Properties loadLimits(String limitsFnm, Properties defaults)
+  /* read the limits file, which may be missing; any limit which
+     isn't in the file comes from defaults */
+  {
+    Properties limits = new Properties(defaults);
+    if ((limitsFnm == null) || !new File(limitsFnm).exists())
+      return limits;
+    try {
+      InputStream in = new FileInputStream(limitsFnm);
+      limits.load(in);
+      in.close();
+    }
+    catch (IOException e)
+    {  System.out.println("Problem reading " + limitsFnm);  }
+    return limits;
+  }  // end of loadLimits()
+
+
+
+  public void addGame(Game g)
+  /* a game with the same ID as an existing game is rejected, and
+     closed so it doesn't keep its journal and timer tasks */
+  {
+    if (games.putIfAbsent(g.getID(), g) != null) {
+      System.out.println("Game " + g.getID() + " already exists");
+      g.close();
+    }
+    else
+      System.out.println("Loaded game " + g.getID());
+  }  // end of addGame()
+
+
+
+  public Game getGame(String gid)
+  // return the game with this ID, or the default game if gid is null
+  {
+    if (gid == null)
+      gid = DEFAULT_GAME;
+    return games.get(gid);
+  }  // end of getGame()
+
+
+  public int numGames()
+  {  return games.size();  }
+
+
+
+  public void closeGames()
+  // stop the timer and loader, and close every game
+  {
+    timer.shutdown();
+    loader.shutdown();
+    for (Game g : games.values())
+      g.close();
+  }  // end of closeGames()
+
+}  // end of GameRegistry class
@@ -0,0 +1,224 @@
+
+// GameSetup.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* Everything a game loads from its players file and map: the roster,
+   the map and its tiles, the MapCoords converter, the SpatialGrid,
+   and the request limiters (which have a bucket for each player).
+
+   A setup is never changed after it has been loaded. When the players
+   file or map is edited, Game loads a new setup on a background thread
+   and then swaps it in, so a request only ever sees one complete setup
+   (see Game.reload()).
+
+   A new setup copies the state of the players it shares with the old
+   setup (whether they're alive, their trail, and their version). Their
+   locations are also copied, unless the map has changed, since the old
+   (x,y) coordinates would be wrong for the new map. The map's bytes
+   and tiles are reused if the map file hasn't changed.
+
+   If the limits properties set LAT_TABLE_KEY to true, the MapCoords
+   converter uses a latitude lookup table (see MapCoords), and the
+   table's largest error is reported when the setup is loaded.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.awt.image.*;
+
+
+
+public final class GameSetup
+{
+  public static final String LOCS_LIMIT = "locs";   // name of the locations limit
+
+  private static final int MIN_REQUEST_PERIOD = 2*60;    // 2 minutes in seconds
+
+  private static final String LAT_TABLE_KEY = "map.latTable";   // "true" to use the table
+
+  private static final String[][] DEFAULT_LIMITS = {
+     //  name        fox        hound      ("burst/seconds", see RateLimiter)
+      { "hi",       "3/10",    "3/10" },
+      { "tile",     "100/10",  "100/10" },
+      { "loc",      "20/10",   "20/10" },
+      { "watch",    "20/10",   "20/10" },
+      { "near",     "10/10",   "10/10" },
+      { "kill",     "5/10",    "5/10" },
+      { "trail",    "10/10",   "10/10" },
+      { LOCS_LIMIT, "-",       "1/" + MIN_REQUEST_PERIOD }
+  };
+
+
+  private final PlayerRoster roster;   // for storing player information
+  private final MapCoords mapCoords;   // for converting (lat,long) info into image coords
+  private final MapImage mapIm;        // the map's pre-encoded bytes; may be null
+  private final MapTiles mapTiles;     // the map cut into tiles; may be null
+  private final SpatialGrid grid;      // for finding the players near a position; may be null
+
+  private final HashMap<String, RateLimiter> limiters =
+                             new HashMap<String, RateLimiter>();  // command name --> limiter
+  private final RateLimiter locsLimiter;
+
+  private final long playersModTime, mapModTime;   // when the files were last changed
+
+
+
+  private GameSetup(PlayerRoster r, MapCoords mc, MapImage im, MapTiles tiles,
+                    Properties limits, long playersTime, long mapTime)
+  {
+    roster = r;
+    mapCoords = mc;
+    mapIm = im;
+    mapTiles = tiles;
+    grid = (im == null) ? null : new SpatialGrid(im.getWidth(), im.getHeight());
+    playersModTime = playersTime;
+    mapModTime = mapTime;
+
+    RateLimiter locsRL = null;
+    for (String[] lim : DEFAULT_LIMITS) {
+      /* the limits properties may replace the defaults, using keys
+         such as "fox.loc" and "hound.locs" */
+      String name = lim[0];
+      RateLimiter rl = new RateLimiter(name,
+                              limits.getProperty("fox." + name, lim[1]),
+                              limits.getProperty("hound." + name, lim[2]),
+                              roster.size());
+      if (name.equals(LOCS_LIMIT))
+        locsRL = rl;
+      else
+        limiters.put(name, rl);
+    }
+    locsLimiter = locsRL;
+  }  // end of GameSetup()
+
+
+
+  public static GameSetup load(String playersFnm, String mapFnm, String mimeType,
+                               Properties limits, GameSetup old)
+  /* load the players file and the map, copying the players' state from
+     the old setup if there is one; return null if the players file
+     can't be read, or if a changed map can't be loaded */
+  {
+    File playersFile = new File(playersFnm);
+    File mapFile = new File(mapFnm);
+    long playersTime = playersFile.lastModified();
+    long mapTime = mapFile.lastModified();
+
+    PlayerRoster roster = null;
+    MapCoords mapCoords = null;
+    try {
+      BufferedReader in = new BufferedReader( new FileReader( playersFile ));
+      /*  format:   map center latitude
+                    map center longitude
+                    map zoom
+                    player id1     // if id starts with 'H' than is hound; 'F' means fox
+                    player id2     // usually one fox, and many hounds
+                      :
+      */
+      String latStr = in.readLine();    // latitude
+      String lonStr = in.readLine();    // longitude
+      String zoomStr = in.readLine();   // zoom factor
+      mapCoords = new MapCoords(latStr, lonStr, zoomStr);
+
+      // store player IDs, keeping the state of any old players
+      roster = PlayerRoster.read(in, (old == null) ? null : old.roster);
+      in.close();
+    }
+    catch (IOException e)
+    {  System.out.println("Problem reading " + playersFnm);
+       return null;
+    }
+
+    // the map file is read once, and its bytes are reused for every "hi"
+    boolean sameMap = (old != null) && (old.mapIm != null) && (old.mapModTime == mapTime);
+    MapImage mapIm = sameMap ? old.mapIm : MapImage.load(mapFnm, mimeType);
+    MapTiles mapTiles = null;
+    if (mapIm != null) {
+      mapCoords.setImageSize( mapIm.getWidth(), mapIm.getHeight() );
+      if (Boolean.parseBoolean( limits.getProperty(LAT_TABLE_KEY, "false").trim() )) {
+        mapCoords.useLookupTable(true);
+        System.out.println("Map " + mapFnm + " latitude table error: " +
+                                  mapCoords.getLookupError() + " pixels");
+      }
+      if (sameMap)
+        mapTiles = old.mapTiles;
+      else {
+        BufferedImage im = mapIm.decode();
+        if (im != null)
+          mapTiles = MapTiles.build(im, mapCoords, mapIm.getETag());
+      }
+    }
+    else if (old != null) {   // don't replace a working map with a broken one
+      System.out.println("Map " + mapFnm + " not reloaded");
+      return null;
+    }
+
+    GameSetup setup = new GameSetup(roster, mapCoords, mapIm, mapTiles,
+                                    limits, playersTime, mapTime);
+    if (old != null)
+      setup.copyLocations(old, sameMap && mapCoords.hasSameCenter(old.mapCoords));
+    return setup;
+  }  // end of load()
+
+
+
+  private void copyLocations(GameSetup old, boolean keepLocs)
+  // put the copied players into the grid at their old locations
+  {
+    if (!keepLocs || (grid == null))
+      return;
+    for (Player p : roster.getPlayers()) {
+      Player oldP = old.roster.findPlayer( p.getID() );
+      if ((oldP != null) && oldP.hasLocation()) {
+        long pos = oldP.getPos();
+        grid.move(p, Player.posX(pos), Player.posY(pos));
+      }
+    }
+  }  // end of copyLocations()
+
+
+
+  public boolean isChanged(String playersFnm, String mapFnm)
+  // have the players file or map been changed since they were loaded?
+  {
+    return (new File(playersFnm).lastModified() != playersModTime) ||
+           (new File(mapFnm).lastModified() != mapModTime);
+  }  // end of isChanged()
+
+
+
+  public PlayerRoster getRoster()
+  {  return roster;  }
+
+  public MapCoords getMapCoords()
+  {  return mapCoords;  }
+
+  public MapImage getMapImage()
+  {  return mapIm;  }
+
+  public MapTiles getMapTiles()
+  {  return mapTiles;  }
+
+  public SpatialGrid getGrid()
+  {  return grid;  }
+
+  public RateLimiter getLimiter(String command)
+  // return the command's limiter, or null if it isn't limited
+  {  return (command == null) ? null : limiters.get(command);  }
+
+  public RateLimiter getLocsLimiter()
+  {  return locsLimiter;  }
+
+
+
+  public String toString()
+  // report the numbers of rejected requests
+  {
+    StringBuffer sb = new StringBuffer();
+    for (RateLimiter rl : limiters.values())
+      sb.append(rl + "; ");
+    sb.append(locsLimiter);
+    return sb.toString();
+  }  // end of toString()
+
+}  // end of GameSetup class
@@ -0,0 +1,63 @@
+
+// GameState.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* The stage a game has reached, which is one of:
+
+      NOT_STARTED  -->  RUNNING(start time)  -->  OVER(start time, message)
+
+   A game can also go straight from NOT_STARTED to OVER.
+
+   A GameState object is never changed. A game moves to a new stage by
+   swapping in a new object with compareAndSet(), so the start time,
+   game-over flag, and message are always read together, and only
+   one thread can ever end a game.
+*/
+
+
+
+public final class GameState
+{
+  public static final GameState NOT_STARTED = new GameState(-1, false, null);
+
+  private final long startTime;   // in seconds; -1 if not started
+  private final boolean isOver;
+  private final String message;   // why the game ended
+
+
+
+  private GameState(long t, boolean over, String msg)
+  {
+    startTime = t;
+    isOver = over;
+    message = msg;
+  }  // end of GameState()
+
+
+
+  public GameState start(long t)
+  // the running state which follows this one
+  {  return new GameState(t, false, null);  }
+
+
+  public GameState end(String msg)
+  // the game-over state which follows this one
+  {  return new GameState(startTime, true, msg);  }
+
+
+  public boolean isStarted()
+  {  return (startTime != -1);  }
+
+  public boolean isRunning()
+  {  return (isStarted() && !isOver);  }
+
+  public boolean isOver()
+  {  return isOver;  }
+
+  public long getStartTime()
+  {  return startTime;  }
+
+  public String getMessage()
+  {  return message;  }
+
+}  // end of GameState class
@@ -7,6 +7,30 @@
    static maps info about the (lat,long) center of the image and
    its zoom factor, and Mercator functions since Google maps use a
    Mercator projection.
+
+   The map image is also divided into a pyramid of square tiles
+   (see MapTiles). The tiles at the highest zoom level are cut
+   from the full-size image, and each lower level is half the size
+   of the one above it, down to zoom level 0, where the whole map
+   fits into a single tile. The tile methods give the size of each
+   level, and its number of tile columns and rows.
+
+   The parts of the conversions that only depend on the map are
+   calculated once. There are also batch versions of lon2x() and
+   lat2y() for converting many positions at once, which only check
+   the map and load the table once for the whole batch.
+
+   lat2y() can optionally use a lookup table instead of calling
+   Math.log() and Math.sin() (it's switched on by GameSetup if the
+   limits properties say so). The table covers the latitudes from one
+   map height above the map to one map height below it, and stores
+   the y-distances from the map's center as fixed-point numbers, which
+   are linearly interpolated. The largest difference between the
+   table and the exact function is measured when the table is built.
+
+   A table is never changed once it's built, and is published through
+   a single volatile field, so a request thread converting a latitude
+   sees either the whole table or none of it.
 */
 
 import java.io.*;
@@ -18,6 +42,12 @@ public class MapCoords
   private static final double LAT_MAX = 85.05113;   // max latitude where Mercator works
       // see http://en.wikipedia.org/wiki/Mercator_projection
 
+  public static final int TILE_SIZE = 256;   // width and height of a tile, in pixels
+
+  private static final int LUT_SIZE = 4096;   // number of intervals in the lookup table
+  private static final int FIX_SHIFT = 16;    // fixed-point numbers are 16.16
+  private static final double FIX_ONE = 1 << FIX_SHIFT;
+
   // Google static map data
   private double lonCenter, latCenter;   // (lat,long) of image center
   private int zoom;
@@ -25,6 +55,11 @@ public class MapCoords
   private int imWidth, imHeight;
 
   private double lonConvert, latConvert;
+  private double centerGud;    // the (constant) inverse Gudermannian of latCenter
+
+  private int maxZoom = 0;     // zoom level of the full-size image
+
+  private volatile LatTable latTable = null;   // latitude lookup table, if used
 
 
 
@@ -56,15 +91,32 @@ public class MapCoords
     // calculate the conversion factors for the latitude and longitude
     lonConvert = (256.0 * Math.pow(2, zoom)) / 360.0;
     latConvert = (256.0 / (2*invGud(LAT_MAX))) * Math.pow(2, zoom);
+    centerGud = invGud(latCenter);
   }  // end of MapCoords()
 
 
 
+  public boolean hasSameCenter(MapCoords mc)
+  // does mc use the same center and zoom, so an (x,y) means the same place?
+  {
+    return (latCenter == mc.latCenter) && (lonCenter == mc.lonCenter) &&
+           (zoom == mc.zoom);
+  }  // end of hasSameCenter()
+
+
+
   public void setImageSize(int w, int h)
   // store the image dimensions
   {
     imWidth = w;
     imHeight = h;
+
+    maxZoom = 0;
+    while ((TILE_SIZE << maxZoom) < Math.max(imWidth, imHeight))
+      maxZoom++;
+
+    if (latTable != null)
+      latTable = buildLatTable();   // the table depends on the image height
   }  // end of setImageSize()
 
 
@@ -91,14 +143,148 @@ public class MapCoords
       return -1;
     if (imHeight <= 0)
      return -1;
+    return convertLat(lat, latTable, imHeight/2);
+  }  // end of lat2y()
+
 
-    double worldDist = invGud(lat) - invGud(latCenter);
+  private int convertLat(double lat, LatTable lt, int halfHeight)
+  // convert a latitude in the Mercator range, using the table if it covers lat
+  {
+    if ((lt != null) && (lat >= lt.latMin) && (lat < lt.latMax))
+      return halfHeight - lt.yDist(lat);
+
+    double worldDist = invGud(lat) - centerGud;
     int yDist = (int)(worldDist * latConvert);
-    return ( imHeight/2 - yDist );
+    return ( halfHeight - yDist );
+  }  // end of convertLat()
+
+
+
+  public void lon2x(double[] lons, int[] xs)
+  // convert all the longitudes in lons[] into x-coordinates in xs[]
+  {
+    int n = Math.min(lons.length, xs.length);
+    if (imWidth <= 0) {
+      for (int i=0; i < n; i++)
+        xs[i] = -1;
+      return;
+    }
+    int halfWidth = imWidth/2;
+    for (int i=0; i < n; i++) {
+      double lon = lons[i];
+      if ((lon < -180) || (lon > 180))
+        xs[i] = -1;
+      else
+        xs[i] = (int) (halfWidth - (lonCenter - lon)*lonConvert);
+    }
+  }  // end of lon2x()
+
+
+  public void lat2y(double[] lats, int[] ys)
+  // convert all the latitudes in lats[] into y-coordinates in ys[]
+  {
+    int n = Math.min(lats.length, ys.length);
+    if (imHeight <= 0) {
+      for (int i=0; i < n; i++)
+        ys[i] = -1;
+      return;
+    }
+    LatTable lt = latTable;    // the same table for the whole batch
+    int halfHeight = imHeight/2;
+    for (int i=0; i < n; i++) {
+      double lat = lats[i];
+      if ((lat < -LAT_MAX) || (lat > LAT_MAX))
+        ys[i] = -1;
+      else
+        ys[i] = convertLat(lat, lt, halfHeight);
+    }
   }  // end of lat2y()
 
 
 
+  // ------------------ latitude lookup table -----------------------
+
+
+  public void useLookupTable(boolean b)
+  /* switch the lookup table on or off; the table can only be built
+     once the image size is known */
+  {  latTable = b ? buildLatTable() : null;  }
+
+
+  public double getLookupError()
+  /* the largest difference (in pixels) between the table and invGud(),
+     or -1 if no table is being used */
+  {
+    LatTable lt = latTable;
+    return (lt == null) ? -1 : lt.error;
+  }  // end of getLookupError()
+
+
+
+  private LatTable buildLatTable()
+  /* store the fixed-point y-distances from the center for the latitudes
+     between one map height above and below the map, and measure
+     the table's error at the middle of each interval */
+  {
+    if (imHeight <= 0)
+      return null;
+
+    double gudRange = (1.5*imHeight) / latConvert;
+    double latMin = Math.max(-LAT_MAX, gud(centerGud - gudRange));
+    double latMax = Math.min(LAT_MAX, gud(centerGud + gudRange));
+    double step = (latMax - latMin)/LUT_SIZE;
+
+    int[] lut = new int[LUT_SIZE+1];
+    for (int i=0; i <= LUT_SIZE; i++)
+      lut[i] = (int) Math.round( exactYDist(latMin + i*step) * FIX_ONE );
+
+    double maxError = 0;
+    for (int i=0; i < LUT_SIZE; i++) {
+      double midLat = latMin + (i+0.5)*step;
+      double midTable = (lut[i] + lut[i+1]) / (2*FIX_ONE);
+      maxError = Math.max(maxError, Math.abs(midTable - exactYDist(midLat)));
+    }
+    // include the fixed-point rounding in the error
+    return new LatTable(lut, latMin, latMax, FIX_ONE/step, maxError + 1/FIX_ONE);
+  }  // end of buildLatTable()
+
+
+
+  private double exactYDist(double lat)
+  // the y-distance in pixels from the map's center to the latitude
+  {  return (invGud(lat) - centerGud) * latConvert;  }
+
+
+
+  // ------------------ tile conversion -----------------------
+
+
+  public int getMaxZoom()
+  /* the zoom level of the full-size image; it's the smallest level
+     where the image is no bigger than one tile after being halved
+     maxZoom times (calculated by setImageSize()) */
+  {  return maxZoom;  }
+
+
+
+  public int scaledLength(int len, int z)
+  // the length of len image pixels at zoom level z (rounded up)
+  {
+    int shift = maxZoom - z;
+    return (len + (1 << shift) - 1) >> shift;
+  }  // end of scaledLength()
+
+
+  public int getTileCols(int z)
+  // the number of tile columns at zoom level z
+  {  return (scaledLength(imWidth, z) + TILE_SIZE-1) / TILE_SIZE;  }
+
+  public int getTileRows(int z)
+  // the number of tile rows at zoom level z
+  {  return (scaledLength(imHeight, z) + TILE_SIZE-1) / TILE_SIZE;  }
+
+
+
   private double invGud(double latitude)
   /* Calculates the y-value for a latitude in degrees 
      An inverse Gudermannian function for a Mercator map. */
@@ -109,5 +295,46 @@ public class MapCoords
   }
 
 
+  private double gud(double y)
+  // the Gudermannian function, the inverse of invGud(); returns degrees
+  {  return Math.toDegrees( Math.atan( Math.sinh(y) ));  }
+
+
+
+  // ------------------ the lookup table -----------------------
+
+
+  private static class LatTable
+  // an immutable latitude lookup table, covering [latMin, latMax)
+  {
+    final int[] yDists;    // fixed-point y-distances from the center
+    final double latMin, latMax;
+    final double scale;    // converts a latitude to a fixed-point table position
+    final double error;    // largest table error, in pixels
+
+    LatTable(int[] yDists, double latMin, double latMax, double scale, double error)
+    {
+      this.yDists = yDists;
+      this.latMin = latMin;
+      this.latMax = latMax;
+      this.scale = scale;
+      this.error = error;
+    }
+
+
+    int yDist(double lat)
+    // the y-distance of the latitude from the center, truncated like lat2y()
+    {
+      int pos = (int)((lat - latMin) * scale);   // fixed-point table position
+      int i = pos >> FIX_SHIFT;
+      if (i >= LUT_SIZE)
+        i = LUT_SIZE-1;
+      long frac = pos - (((long) i) << FIX_SHIFT);
+      long yDistFix = yDists[i] + (((yDists[i+1] - yDists[i]) * frac) >> FIX_SHIFT);
+      return (int)(yDistFix / (1 << FIX_SHIFT));
+    }  // end of yDist()
+
+  }  // end of LatTable class
+
 }  // end of MapCoords class
 
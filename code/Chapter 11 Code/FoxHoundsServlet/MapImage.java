@@ -0,0 +1,201 @@
+
+// MapImage.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* An immutable copy of the map image, kept as the original
+   JPEG bytes read from the map file. The bytes are never re-encoded,
+   so every "hi" reply is just a copy of the same array, and
+   the image's quality never drops.
+
+   The image is decoded once, only to find its dimensions.
+
+   Each map has a strong ETag (an MD5 digest of the bytes) and
+   a Last-Modified time (the file's modification time), so a client
+   which already has the map can be answered with 304 Not Modified.
+
+   If the request is asynchronous, the map is written by an AsyncWriter,
+   so a slow client doesn't hold a thread while it downloads the map.
+*/
+
+import javax.servlet.http.*;
+
+import java.io.*;
+import java.security.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+
+
+public class MapImage
+{
+  private final byte[] imBytes;    // the encoded image; never changed or passed out
+  private final String mimeType;
+  private final int width, height;
+
+  private final String eTag;         // strong entity tag for conditional GETs
+  private final long lastModified;   // in ms, rounded down to a whole second
+
+
+
+  private MapImage(byte[] bytes, String mime, int w, int h, long modTime)
+  {
+    imBytes = bytes;
+    mimeType = mime;
+    width = w;
+    height = h;
+    eTag = makeETag(bytes);
+    lastModified = (modTime/1000)*1000;   // HTTP dates only use whole seconds
+  }  // end of MapImage()
+
+
+
+  public static MapImage load(String mapFnm, String mime)
+  /* read the map file's bytes and decode them once to get the
+     image's size; return null if the map cannot be read */
+  {
+    File mapFile = new File(mapFnm);
+    try {
+      byte[] bytes = readBytes(mapFile);
+      BufferedImage im = ImageIO.read( new ByteArrayInputStream(bytes) );
+      if (im == null) {
+        System.out.println("Could not decode map in " + mapFnm);
+        return null;
+      }
+      return new MapImage(bytes, mime, im.getWidth(), im.getHeight(),
+                          mapFile.lastModified());
+    }
+    catch(IOException e)
+    {  System.out.println("Could not read map from " + mapFnm);
+       return null;
+    }
+  }  // end of load()
+
+
+
+  private static byte[] readBytes(File f) throws IOException
+  // read all of the file into a byte array
+  {
+    byte[] bytes = new byte[ (int) f.length() ];
+    DataInputStream in = new DataInputStream( new FileInputStream(f) );
+    try {
+      in.readFully(bytes);
+    }
+    finally {
+      in.close();
+    }
+    return bytes;
+  }  // end of readBytes()
+
+
+
+  private static String makeETag(byte[] bytes)
+  // a quoted hex string of the MD5 digest of the bytes
+  {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+      StringBuffer sb = new StringBuffer("\"");
+      for (int i=0; i < digest.length; i++) {
+        sb.append( Character.forDigit((digest[i] >> 4) & 0xF, 16) );
+        sb.append( Character.forDigit(digest[i] & 0xF, 16) );
+      }
+      sb.append("\"");
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)   // MD5 is always available
+    {  return "\"" + bytes.length + "\"";  }
+  }  // end of makeETag()
+
+
+
+  public int getWidth()
+  {  return width;  }
+
+  public int getHeight()
+  {  return height;  }
+
+  public String getMimeType()
+  {  return mimeType;  }
+
+  public String getETag()
+  {  return eTag;  }
+
+
+  public BufferedImage decode()
+  // decode the bytes again, e.g. to cut them into tiles
+  {
+    try {
+      return ImageIO.read( new ByteArrayInputStream(imBytes) );
+    }
+    catch(IOException e)
+    {  return null;  }
+  }  // end of decode()
+
+
+
+  // ---------------------- sending the map ---------------------------
+
+
+  public boolean send(HttpServletRequest req, HttpServletResponse resp)
+                                                        throws IOException
+  /* send the map bytes, or a 304 reply if the client's copy
+     (identified by its If-None-Match or If-Modified-Since headers)
+     is still current. Return false if the bytes are being written
+     without blocking, and so the request isn't finished yet */
+  {
+    resp.setHeader("ETag", eTag);
+    resp.setDateHeader("Last-Modified", lastModified);
+
+    if (isNotModified(req)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    resp.setContentType(mimeType);
+    resp.setContentLength(imBytes.length);  // set content size
+
+    if (req.isAsyncStarted()) {
+      AsyncWriter.write(req.getAsyncContext(), imBytes);
+      return false;
+    }
+
+    OutputStream out = resp.getOutputStream();
+    out.write(imBytes);
+    out.flush();
+    out.close();
+    return true;
+  }  // end of send()
+
+
+
+  private boolean isNotModified(HttpServletRequest req)
+  /* If-None-Match takes priority over If-Modified-Since,
+     as described in the HTTP/1.1 spec (RFC 2616, 14.26) */
+  {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null)
+      return matchesETag(ifNoneMatch);
+
+    long ifModifiedSince = -1;
+    try {
+      ifModifiedSince = req.getDateHeader("If-Modified-Since");
+    }
+    catch (IllegalArgumentException e) {}  // badly formatted date, so ignore it
+
+    return ((ifModifiedSince != -1) && (lastModified <= ifModifiedSince));
+  }  // end of isNotModified()
+
+
+
+  private boolean matchesETag(String ifNoneMatch)
+  // does the comma-separated If-None-Match list contain this map's ETag?
+  {
+    String[] tags = ifNoneMatch.split(",");
+    for (int i=0; i < tags.length; i++) {
+      String tag = tags[i].trim();
+      if (tag.equals("*") || tag.equals(eTag))
+        return true;
+    }
+    return false;
+  }  // end of matchesETag()
+
+}  // end of MapImage class
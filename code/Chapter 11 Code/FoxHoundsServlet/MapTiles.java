@@ -0,0 +1,167 @@
+
+// MapTiles.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* The map image cut into a pyramid of JPEG tiles, built once when
+   the map is loaded, and kept in memory as encoded bytes.
+
+   The highest zoom level holds tiles cut from the full-size map.
+   Each lower level is made by halving the level above it, until
+   the whole map fits into one tile at level 0. The sizes and
+   tile coordinates are those of MapCoords.
+
+   A tile is sent in reply to a "tile" command, so a client only
+   needs to download the tiles it can see, rather than the entire map.
+   Tiles at the right and bottom edges of a level may be smaller
+   than MapCoords.TILE_SIZE.
+*/
+
+import javax.servlet.http.*;
+
+import java.io.*;
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+
+
+public class MapTiles
+{
+  private static final String TILE_MIME_TYPE = "image/jpeg";
+
+  private final int maxZoom;
+  private final int[] numCols;   // number of tile columns at each level
+  private final byte[][][] tiles;  // [zoom][row*numCols + col] --> JPEG bytes
+  private final String eTagBase;   // map's ETag without its closing quote
+
+
+
+  private MapTiles(int maxZ, String mapETag)
+  {
+    maxZoom = maxZ;
+    numCols = new int[maxZ+1];
+    tiles = new byte[maxZ+1][][];
+    eTagBase = mapETag.substring(0, mapETag.length()-1);
+  }  // end of MapTiles()
+
+
+
+  public static MapTiles build(BufferedImage mapIm, MapCoords coords, String mapETag)
+  /* cut the map into tiles at every zoom level, starting with the
+     full-size image; return null if the tiles can't be encoded */
+  {
+    int maxZ = coords.getMaxZoom();
+    MapTiles mt = new MapTiles(maxZ, mapETag);
+
+    BufferedImage levelIm = toRGB(mapIm);
+    try {
+      for (int z = maxZ; z >= 0; z--) {
+        if (z < maxZ)
+          levelIm = halveImage(levelIm, coords.scaledLength(mapIm.getWidth(), z),
+                                        coords.scaledLength(mapIm.getHeight(), z));
+        mt.cutLevel(levelIm, z, coords.getTileCols(z), coords.getTileRows(z));
+      }
+    }
+    catch (IOException e)
+    {  System.out.println("Could not encode map tiles: " + e);
+       return null;
+    }
+    return mt;
+  }  // end of build()
+
+
+
+  private static BufferedImage toRGB(BufferedImage im)
+  // JPEG tiles need an image without an alpha channel
+  {
+    if (im.getType() == BufferedImage.TYPE_INT_RGB)
+      return im;
+    BufferedImage rgbIm = new BufferedImage(im.getWidth(), im.getHeight(),
+                                            BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2d = rgbIm.createGraphics();
+    g2d.drawImage(im, 0, 0, null);
+    g2d.dispose();
+    return rgbIm;
+  }  // end of toRGB()
+
+
+
+  private static BufferedImage halveImage(BufferedImage im, int w, int h)
+  // scale the image down to w x h (about half its size)
+  {
+    BufferedImage halfIm = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2d = halfIm.createGraphics();
+    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                         RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g2d.drawImage(im, 0, 0, w, h, null);
+    g2d.dispose();
+    return halfIm;
+  }  // end of halveImage()
+
+
+
+  private void cutLevel(BufferedImage levelIm, int z, int cols, int rows)
+                                                        throws IOException
+  // cut the level's image into tiles, and encode each one as a JPEG
+  {
+    numCols[z] = cols;
+    tiles[z] = new byte[cols*rows][];
+    int size = MapCoords.TILE_SIZE;
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    for (int row = 0; row < rows; row++)
+      for (int col = 0; col < cols; col++) {
+        int w = Math.min(size, levelIm.getWidth() - col*size);
+        int h = Math.min(size, levelIm.getHeight() - row*size);
+        BufferedImage tileIm = levelIm.getSubimage(col*size, row*size, w, h);
+        baos.reset();
+        ImageIO.write(tileIm, "jpg", baos);
+        tiles[z][row*cols + col] = baos.toByteArray();
+      }
+  }  // end of cutLevel()
+
+
+
+  public int getMaxZoom()
+  {  return maxZoom;  }
+
+
+  private byte[] getTile(int z, int x, int y)
+  // return the tile's bytes, or null if there's no such tile
+  {
+    if ((z < 0) || (z > maxZoom) || (x < 0) || (y < 0) || (x >= numCols[z]))
+      return null;
+    int i = y*numCols[z] + x;
+    if (i >= tiles[z].length)
+      return null;
+    return tiles[z][i];
+  }  // end of getTile()
+
+
+
+  public boolean send(int z, int x, int y, HttpServletRequest req,
+                      HttpServletResponse resp) throws IOException
+  /* send the tile at zoom level z, column x, row y, or a 304 reply
+     if the client already has it; return false if there's no such tile.
+     A tile only changes if the map changes, so its ETag is the map's
+     ETag plus the tile's coordinates. */
+  {
+    byte[] tile = getTile(z, x, y);
+    if (tile == null)
+      return false;
+
+    String eTag = eTagBase + "-" + z + "-" + x + "-" + y + "\"";
+    resp.setHeader("ETag", eTag);
+    if (eTag.equals( req.getHeader("If-None-Match") )) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    resp.setContentType(TILE_MIME_TYPE);
+    resp.setContentLength(tile.length);
+    OutputStream out = resp.getOutputStream();
+    out.write(tile);
+    out.close();
+    return true;
+  }  // end of send()
+
+}  // end of MapTiles class
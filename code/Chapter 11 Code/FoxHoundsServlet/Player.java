@@ -5,23 +5,54 @@
 /* Store information about a single player:
       the ID, the current (x,y) location on the map, and if alive;
       a hound ID starts with 'H', a fox with 'F'
+
+   The (x,y) location is packed into a single long, so it is
+   always read and written as one value, without locking.
+
+   Each player's recent locations are also kept in a Trail, which has
+   room for TRAIL_LEN samples.
+
+   A player also has an index (its position in the game's roster), and
+   a version number, which is changed by the game whenever the player
+   moves or dies. Clients use the version to ask only for the players
+   that changed since their last request.
 */
 
+import java.util.concurrent.atomic.*;
+
+
 public class Player
 {
+  private static final long NO_POS = pack(-1, -1);   // location unknown
+  private static final int TRAIL_LEN = 1024;
+      // about 10 hours of samples, if a location is sent every 35 secs
+
   private String id;   // a hound ID starts with 'H', a fox with 'F'
-  private int x, y;
-  private boolean isAlive = true;
-  private long locRequestTime;    // seconds
-     // time when locations were last requested
+  private int index = -1;    // position in the roster
+  private volatile long version = 0;   // 0 means that the player hasn't changed
+  private volatile long pos;   // x in the high 32 bits, y in the low 32 bits
+  private final AtomicInteger cell = new AtomicInteger(-1);   // SpatialGrid cell index
+  private volatile boolean isAlive = true;
+  private final Trail trail;
 
 
 
   public Player(String uid)
   { id = uid;
-    x = -1;     // location unknown
-    y = -1;
-    locRequestTime = -1;
+    pos = NO_POS;     // location unknown
+    trail = new Trail(TRAIL_LEN);
+  }
+
+
+  public Player(Player old)
+  /* a copy of an old player for a reloaded roster, which keeps the
+     player's version, trail, and if it's alive; the location isn't
+     copied, since the player isn't in the new grid yet */
+  { id = old.id;
+    pos = NO_POS;
+    version = old.version;
+    isAlive = old.isAlive;
+    trail = old.trail;
   }
 
 
@@ -33,12 +64,89 @@ public class Player
   { return id.equals(uid);  }
 
 
-  public void storeCoord(int xCoord, int yCoord)
-  {  x = xCoord;
-     y = yCoord;
+  public boolean storeCoord(int xCoord, int yCoord)
+  // return true if the location has changed
+  {  long newPos = pack(xCoord, yCoord);
+     if (pos == newPos)
+       return false;
+     pos = newPos;
+     return true;
   }
 
 
+  public int getX()
+  {  return (int)(pos >> 32);  }
+
+  public int getY()
+  {  return (int) pos;  }
+
+
+  public long getPos()
+  // the packed (x,y) location, for reading x and y together
+  {  return pos;  }
+
+  public static int posX(long p)
+  {  return (int)(p >> 32);  }
+
+  public static int posY(long p)
+  {  return (int) p;  }
+
+
+  public boolean hasLocation()
+  {  return (pos != NO_POS);  }
+
+
+  public void addToTrail(long time)
+  // store the current location in the trail
+  {  trail.add(time, pos);  }
+
+  public Trail getTrail()
+  {  return trail;  }
+
+
+  public long distSq(int xCoord, int yCoord)
+  // the squared distance from (xCoord,yCoord) to the player
+  {
+    long p = pos;
+    if (p == NO_POS)
+      return Long.MAX_VALUE;
+    long dx = (int)(p >> 32) - xCoord;
+    long dy = (int) p - yCoord;
+    return dx*dx + dy*dy;
+  }  // end of distSq()
+
+
+  private static long pack(int xCoord, int yCoord)
+  {  return (((long) xCoord) << 32) | (yCoord & 0xFFFFFFFFL);  }
+
+
+  public int getIndex()
+  {  return index;  }
+
+  public void setIndex(int i)
+  {  index = i;  }
+
+
+  public long getVersion()
+  {  return version;  }
+
+  public void markChanged(AtomicLong versions)
+  /* give the player the game's next version number. The version is
+     set to the largest possible value first, so a reader who has already
+     seen the new version number will never see the player's old version */
+  {  version = Long.MAX_VALUE;
+     version = versions.incrementAndGet();
+  }
+
+
+  public int getCell()
+  {  return cell.get();  }
+
+  public int swapCell(int c)
+  // store the player's new grid cell, returning the old one
+  {  return cell.getAndSet(c);  }
+
+
   public boolean isHound()
   {  return (id.charAt(0) == 'H');  }
 
@@ -50,20 +158,25 @@ public class Player
   {  return isAlive;  }
 
 
-  public void setAlive(boolean b)
-  {  isAlive = b;  }
-
-  
-  public long getLocRequestTime()
-  {  return locRequestTime;  }
-
-
-  public void setLocRequestTime(long t)
-  {  locRequestTime = t;  }
+  public synchronized boolean kill()
+  // return false if the player was already dead
+  {
+    if (!isAlive)
+      return false;
+    isAlive = false;
+    return true;
+  }  // end of kill()
 
 
   public String toString()
   // only returns first letter (F or H) of ID
-  {  return (id.charAt(0) + " " + x + " " + y + " " + isAlive);  } 
+  {  long p = pos;
+     return (id.charAt(0) + " " + (int)(p >> 32) + " " + (int) p + " " + isAlive);
+  }
+
+
+  public String toDeltaString()
+  // the same as toString() but starting with the player's index
+  {  return (index + " " + toString());  }
 
 }  // end of Player class
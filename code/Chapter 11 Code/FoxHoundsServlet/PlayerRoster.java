@@ -0,0 +1,120 @@
+
+// PlayerRoster.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* All the players in a game, indexed by their IDs.
+
+   The roster is built once, when the players file is read,
+   and a player ID can only appear once in it. When the file is
+   reloaded, a new roster is built which copies the players
+   that were in the old one.
+
+   The number of live foxes and hounds is updated as
+   players are killed, so finding a player and testing if all
+   the hounds are dead don't need a search of all the players.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+public class PlayerRoster
+{
+  private final Player[] players;    // in the order they were listed in the file
+  private final ConcurrentHashMap<String, Player> index;   // uid --> player
+
+  private final AtomicInteger liveHounds = new AtomicInteger(0);
+  private final AtomicInteger liveFoxes = new AtomicInteger(0);
+
+
+
+  private PlayerRoster(ArrayList<Player> ps)
+  {
+    players = ps.toArray( new Player[ps.size()] );
+    index = new ConcurrentHashMap<String, Player>(players.length*2);
+    for (int i=0; i < players.length; i++) {
+      Player p = players[i];
+      p.setIndex(i);
+      index.put(p.getID(), p);
+      if (!p.isAlive())
+        continue;
+      if (p.isHound())
+        liveHounds.incrementAndGet();
+      else if (p.isFox())
+        liveFoxes.incrementAndGet();
+    }
+  }  // end of PlayerRoster()
+
+
+
+  public static PlayerRoster read(BufferedReader in, PlayerRoster old)
+                                                       throws IOException
+  /* read the player IDs, one per line, until the end of the input.
+     Blank lines and repeated IDs are skipped. A player who is in
+     the old roster (which may be null) is copied from it. */
+  {
+    ArrayList<Player> ps = new ArrayList<Player>();
+    HashSet<String> ids = new HashSet<String>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      String uid = line.trim();
+      if (uid.length() == 0)
+        continue;
+      if (!ids.add(uid))
+        System.out.println("Duplicate player ID " + uid + " ignored");
+      else {
+        Player oldP = (old == null) ? null : old.findPlayer(uid);
+        ps.add( (oldP == null) ? new Player(uid) : new Player(oldP) );
+      }
+    }
+    return new PlayerRoster(ps);
+  }  // end of read()
+
+
+
+  public Player findPlayer(String uid)
+  // return the player with ID == uid, or null
+  {
+    if (uid == null)
+      return null;
+    return index.get(uid);
+  }  // end of findPlayer()
+
+
+  public Player[] getPlayers()
+  // the array is shared, so callers must not change it
+  {  return players;  }
+
+
+  public int size()
+  {  return players.length;  }
+
+
+
+  public boolean killPlayer(Player p)
+  /* kill p, and update the live counts; return false
+     if p was already dead */
+  {
+    if (!p.kill())
+      return false;
+    if (p.isHound())
+      liveHounds.decrementAndGet();
+    else if (p.isFox())
+      liveFoxes.decrementAndGet();
+    return true;
+  }  // end of killPlayer()
+
+
+  public boolean allHoundsDead()
+  {  return (liveHounds.get() == 0);  }
+
+  public int numLiveHounds()
+  {  return liveHounds.get();  }
+
+  public int numLiveFoxes()
+  {  return liveFoxes.get();  }
+
+}  // end of PlayerRoster class
@@ -0,0 +1,130 @@
+
+// RateLimiter.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A token bucket for each player in a game, which limits how often
+   the player can use a command. Foxes and hounds can have different
+   limits, which are written as "burst/seconds", e.g.
+
+       "1/120"    one request every 120 seconds
+       "20/10"    up to 20 requests at once, refilled at 2 per second
+       "-"        no limit
+
+   Each bucket is stored as a single number, the time when the bucket
+   will be full again (the "theoretical arrival time" of the generic
+   cell rate algorithm). A request is allowed if the bucket has at least
+   one token left, and it takes a token by moving the full time forward
+   by one refill interval. The times are changed with compareAndSet(),
+   so a player's concurrent requests can't both take the last token,
+   and no locks or objects are needed for each request.
+
+   The limiter counts how many requests it has rejected.
+*/
+
+import java.util.concurrent.atomic.*;
+
+
+
+public class RateLimiter
+{
+  private static final int FOX = 0;
+  private static final int HOUND = 1;
+
+  private static final long NEVER = Long.MIN_VALUE/2;   // a bucket which has never been used
+  private static final long NANOS_PER_MS = 1000000L;
+
+  private final String name;
+  private final long[] intervals = new long[2];   // ns to refill one token; 0 means no limit
+  private final long[] tolerances = new long[2];  // ns of requests allowed in a burst
+
+  private final AtomicLongArray fullTimes;   // player index --> when the bucket is full again (ns)
+  private final AtomicLong rejected = new AtomicLong(0);
+
+
+
+  public RateLimiter(String nm, String foxLimit, String houndLimit, int numPlayers)
+  {
+    name = nm;
+    setLimit(FOX, foxLimit);
+    setLimit(HOUND, houndLimit);
+    fullTimes = new AtomicLongArray(numPlayers);
+    for (int i=0; i < numPlayers; i++)
+      fullTimes.set(i, NEVER);
+  }  // end of RateLimiter()
+
+
+
+  private void setLimit(int type, String limit)
+  /* parse a "burst/seconds" limit; a missing or badly
+     formatted limit means no limit */
+  {
+    if ((limit == null) || limit.trim().equals("-"))
+      return;
+    try {
+      String[] toks = limit.trim().split("/");
+      int burst = Integer.parseInt(toks[0].trim());
+      double secs = Double.parseDouble(toks[1].trim());
+      if ((burst > 0) && (secs > 0)) {
+        intervals[type] = (long)(secs*1000*NANOS_PER_MS / burst);
+        tolerances[type] = intervals[type]*(burst-1);
+      }
+    }
+    catch (Exception e)
+    {  System.out.println("Limit for " + name + " not understood: " + limit);  }
+  }  // end of setLimit()
+
+
+
+  public long acquire(Player p)
+  /* take a token from p's bucket, and return 0; if the bucket is empty,
+     return the number of ms until a token will be available */
+  {
+    int type = p.isFox() ? FOX : HOUND;
+    long interval = intervals[type];
+    if (interval == 0)    // no limit
+      return 0;
+
+    int i = p.getIndex();
+    while (true) {
+      long now = System.nanoTime();
+      long fullTime = fullTimes.get(i);
+      long allowTime = fullTime - tolerances[type];
+      if (now < allowTime) {   // no tokens left
+        rejected.incrementAndGet();
+        return toMillis(allowTime - now);
+      }
+      if (fullTimes.compareAndSet(i, fullTime, Math.max(fullTime, now) + interval))
+        return 0;
+    }
+  }  // end of acquire()
+
+
+
+  public long check(Player p)
+  /* the same as acquire() but without taking a token, or counting
+     a rejection */
+  {
+    int type = p.isFox() ? FOX : HOUND;
+    if (intervals[type] == 0)
+      return 0;
+    long wait = (fullTimes.get( p.getIndex() ) - tolerances[type]) - System.nanoTime();
+    return (wait > 0) ? toMillis(wait) : 0;
+  }  // end of check()
+
+
+  private static long toMillis(long nanos)
+  // round up, so a client never retries too early
+  {  return (nanos + NANOS_PER_MS - 1)/NANOS_PER_MS;  }
+
+
+
+  public String getName()
+  {  return name;  }
+
+  public long getRejected()
+  {  return rejected.get();  }
+
+  public String toString()
+  {  return name + ": " + rejected.get() + " rejected";  }
+
+}  // end of RateLimiter class
@@ -0,0 +1,148 @@
+
+// Reply.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* The reply to a single player message, sent either as lines of
+   text (for GET messages), or in the binary format of LocCodec (for
+   POSTed binary messages). Game uses the same code for both kinds of
+   message, and leaves the formatting to Reply.
+
+   Each of the send methods writes a complete reply.
+*/
+
+import javax.servlet.http.*;
+
+import java.io.*;
+
+
+
+public class Reply
+{
+  private HttpServletResponse response;
+  private boolean isBinary;
+
+
+
+  public Reply(HttpServletResponse resp, boolean binary)
+  {
+    response = resp;
+    isBinary = binary;
+  }
+
+
+  public boolean isBinary()
+  {  return isBinary;  }
+
+
+
+  public void sendLocations(Player[] pls, long version, long since) throws IOException
+  /* Send the details of the players. The text reply uses the original
+     format if since is -1, otherwise it sends the version and only the
+     players that changed after since (see Game.processLoc()). Binary
+     replies always use the version and since.
+  */
+  {
+    if (isBinary)
+      sendBinaryLocations(pls, version, since);
+    else {
+      PrintWriter output = response.getWriter();
+      if (since == -1) {
+        output.println("LOCS");
+        for (Player pl : pls)
+          output.println( pl.toString() );
+      }
+      else {
+        output.println("LOCS " + version);
+        for (Player pl : pls)
+          if ((since == 0) || (pl.getVersion() > since))
+            output.println( pl.toDeltaString() );
+      }
+      output.close();
+    }
+  }  // end of sendLocations()
+
+
+
+  private void sendBinaryLocations(Player[] pls, long version, long since)
+                                                          throws IOException
+  {
+    int count = 0;
+    for (Player pl : pls)
+      if ((since <= 0) || (pl.getVersion() > since))
+        count++;
+    count = Math.min(count, LocCodec.MAX_RECORDS);
+
+    byte[] buf = new byte[ LocCodec.locsLength(count) ];
+    LocCodec.encodeLocsHeader(buf, version, count);
+    int recNo = 0;
+    for (Player pl : pls) {
+      if (recNo == count)
+        break;
+      if ((since <= 0) || (pl.getVersion() > since)) {
+        long pos = pl.getPos();   // read x and y together
+        LocCodec.encodeRecord(buf, recNo, pl.getIndex(), pl.isHound(),
+                    Player.posX(pos), Player.posY(pos), pl.isAlive());
+        recNo++;
+      }
+    }
+    sendBytes(buf);
+  }  // end of sendBinaryLocations()
+
+
+
+  public void sendTooSoon(long waitMs) throws IOException
+  /* the player should wait waitMs before trying again. The wait is
+     also given in seconds in a Retry-After header */
+  {
+    long waitSecs = (waitMs + 999)/1000;
+    response.setHeader("Retry-After", "" + waitSecs);
+    if (isBinary)
+      sendBytes( LocCodec.encodeTooSoon(waitMs) );
+    else
+      sendText("TOO SOON " + waitSecs);
+  }  // end of sendTooSoon()
+
+
+
+  public void sendGameOver(String msg) throws IOException
+  {
+    if (isBinary)
+      sendBytes( LocCodec.encodeMessage(LocCodec.REPLY_GAME_OVER, msg) );
+    else
+      sendText("GAME_OVER " + msg);
+  }  // end of sendGameOver()
+
+
+
+  public void sendMessage(String msg) throws IOException
+  // a text message may be several lines long
+  {
+    if (isBinary)
+      sendBytes( LocCodec.encodeMessage(LocCodec.REPLY_MESSAGE, msg) );
+    else
+      sendText(msg);
+  }  // end of sendMessage()
+
+
+
+  private void sendText(String msg) throws IOException
+  {
+    PrintWriter output = response.getWriter();
+    String[] lines = msg.split("\n");
+    for (String line : lines)
+      output.println(line);
+    output.close();
+  }  // end of sendText()
+
+
+
+  private void sendBytes(byte[] buf) throws IOException
+  {
+    response.setContentType(LocCodec.CONTENT_TYPE);
+    response.setContentLength(buf.length);
+    OutputStream out = response.getOutputStream();
+    out.write(buf);
+    out.close();
+  }  // end of sendBytes()
+
+}  // end of Reply class
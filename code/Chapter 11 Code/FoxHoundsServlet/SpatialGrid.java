@@ -0,0 +1,105 @@
+
+// SpatialGrid.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A uniform grid over the map image, used to find the players
+   near a given (x,y) pixel position without looking at every player.
+
+   The map is divided into square cells, CELL_SIZE pixels wide, and
+   each cell holds the set of players currently inside it. A player
+   also remembers the index of its cell, so a move only touches the
+   player's old and new cells.
+
+   No locks are used. If two moves of the same player overlap,
+   a cell may keep an out-of-date entry for that player, but
+   a player is only reported from the cell it is currently in.
+*/
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+public class SpatialGrid
+{
+  private static final int CELL_SIZE = 64;   // in pixels
+
+  private final int numCols, numRows;
+  private final Set<Player>[] cells;
+
+
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public SpatialGrid(int imWidth, int imHeight)
+  {
+    numCols = Math.max(1, (imWidth + CELL_SIZE-1)/CELL_SIZE);
+    numRows = Math.max(1, (imHeight + CELL_SIZE-1)/CELL_SIZE);
+    cells = new Set[numCols*numRows];
+    for (int i=0; i < cells.length; i++)
+      cells[i] = Collections.newSetFromMap( new ConcurrentHashMap<Player, Boolean>() );
+  }  // end of SpatialGrid()
+
+
+
+  private int cellIndex(int x, int y)
+  // the index of the cell containing (x,y), or -1 if it's off the grid
+  {
+    if ((x < 0) || (y < 0))
+      return -1;
+    int col = x/CELL_SIZE;
+    int row = y/CELL_SIZE;
+    if ((col >= numCols) || (row >= numRows))
+      return -1;
+    return row*numCols + col;
+  }  // end of cellIndex()
+
+
+
+  public boolean move(Player p, int x, int y)
+  /* store p's new position, and move it to a new cell if necessary;
+     return false if p hasn't moved */
+  {
+    if (!p.storeCoord(x, y))
+      return false;
+    int newCell = cellIndex(x, y);
+    int oldCell = p.swapCell(newCell);
+    if (oldCell != newCell) {
+      if (newCell != -1)
+        cells[newCell].add(p);
+      if (oldCell != -1)
+        cells[oldCell].remove(p);
+    }
+    return true;
+  }  // end of move()
+
+
+
+  public ArrayList<Player> findNear(int x, int y, int dist)
+  // return the players within dist pixels of (x,y)
+  {
+    ArrayList<Player> near = new ArrayList<Player>();
+    if (dist < 0)
+      return near;
+
+    /* the range of cells overlapping the square around (x,y); the
+       edges are calculated as longs, so a huge dist doesn't overflow */
+    int minCol = (int) Math.max(0, ((long) x-dist)/CELL_SIZE);
+    int maxCol = (int) Math.min(numCols-1, ((long) x+dist)/CELL_SIZE);
+    int minRow = (int) Math.max(0, ((long) y-dist)/CELL_SIZE);
+    int maxRow = (int) Math.min(numRows-1, ((long) y+dist)/CELL_SIZE);
+
+    long distSq = ((long) dist)*dist;
+    for (int row = minRow; row <= maxRow; row++)
+      for (int col = minCol; col <= maxCol; col++) {
+        int ci = row*numCols + col;
+        for (Player p : cells[ci]) {
+          if (p.getCell() != ci)    // an out-of-date entry
+            continue;
+          if (p.distSq(x, y) <= distSq)
+            near.add(p);
+        }
+      }
+    return near;
+  }  // end of findNear()
+
+}  // end of SpatialGrid class
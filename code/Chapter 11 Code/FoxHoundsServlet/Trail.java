@@ -0,0 +1,142 @@
+
+// Trail.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A player's most recent locations, each with the time it was stored,
+   so a chase can be replayed after the game.
+
+   The trail is a ring buffer with room for a fixed number of samples,
+   so its memory use doesn't grow however long the game lasts; when
+   it's full, the oldest sample is overwritten. The samples are kept
+   in arrays of numbers, not as objects.
+
+   Samples are added without locking. Each slot has a stamp, which is
+   the number of the sample stored there, or -1 while the slot is being
+   written. A reader only accepts a slot if its stamp is the same before
+   and after reading it, so a half-written or overwritten sample is
+   skipped instead of being returned.
+
+   save() writes the trails of all the players into one binary file:
+       MAGIC(int32)  base time(int64)  number of players(int16)
+       then for each player:
+          id  number of samples(int32)  sample sample ...
+     - an id is a length byte followed by ASCII characters
+     - a sample is:  time(int32)  x(uint16)  y(uint16)
+       where the time is in ms after the base time
+*/
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+
+
+public class Trail
+{
+  private static final int MAGIC = 0x46485431;   // "FHT1"
+
+  private final int capacity;
+  private final AtomicLong numSamples = new AtomicLong(0);   // ever added
+  private final AtomicLongArray stamps;   // sample number in each slot, or -1
+  private final AtomicLongArray times;    // ms
+  private final AtomicLongArray positions;   // packed (x,y), as in Player
+
+
+
+  public Trail(int cap)
+  {
+    capacity = cap;
+    stamps = new AtomicLongArray(cap);
+    times = new AtomicLongArray(cap);
+    positions = new AtomicLongArray(cap);
+    for (int i=0; i < cap; i++)
+      stamps.set(i, -1);
+  }  // end of Trail()
+
+
+
+  public void add(long time, long pos)
+  // store a packed position, overwriting the oldest sample if the trail is full
+  {
+    long sampleNo = numSamples.getAndIncrement();
+    int slot = (int)(sampleNo % capacity);
+    stamps.set(slot, -1);    // being written
+    times.set(slot, time);
+    positions.set(slot, pos);
+    stamps.set(slot, sampleNo);
+  }  // end of add()
+
+
+
+  public int read(long since, long[] ts, int[] xs, int[] ys)
+  /* copy the samples stored after time since, oldest first, into the
+     arrays, which must have room for getCapacity() samples;
+     return the number of samples copied */
+  {
+    long end = numSamples.get();
+    long start = Math.max(0, end - capacity);
+    int n = 0;
+    for (long sampleNo = start; sampleNo < end; sampleNo++) {
+      int slot = (int)(sampleNo % capacity);
+      if (stamps.get(slot) != sampleNo)   // still being written, or overwritten
+        continue;
+      long time = times.get(slot);
+      long pos = positions.get(slot);
+      if (stamps.get(slot) != sampleNo)   // overwritten while being read
+        continue;
+      if (time > since) {
+        ts[n] = time;
+        xs[n] = Player.posX(pos);
+        ys[n] = Player.posY(pos);
+        n++;
+      }
+    }
+    return n;
+  }  // end of read()
+
+
+
+  public int getCapacity()
+  {  return capacity;  }
+
+
+
+  // ---------------------- saving all the trails ---------------------------
+
+
+  public static void save(File trailsFile, Player[] pls, long baseTime)
+                                                          throws IOException
+  // write every player's trail into trailsFile, in the format given above
+  {
+    DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                                    new FileOutputStream(trailsFile) ));
+    try {
+      out.writeInt(MAGIC);
+      out.writeLong(baseTime);
+      out.writeShort(pls.length);
+
+      int cap = (pls.length == 0) ? 0 : pls[0].getTrail().getCapacity();
+      long[] ts = new long[cap];
+      int[] xs = new int[cap];
+      int[] ys = new int[cap];
+      for (int i=0; i < pls.length; i++) {
+        String id = pls[i].getID();
+        int idLen = Math.min(id.length(), 255);
+        out.writeByte(idLen);
+        for (int c=0; c < idLen; c++)
+          out.writeByte( id.charAt(c) );
+
+        int n = pls[i].getTrail().read(-1, ts, xs, ys);
+        out.writeInt(n);
+        for (int s=0; s < n; s++) {
+          out.writeInt( (int)(ts[s] - baseTime) );
+          out.writeShort(xs[s]);
+          out.writeShort(ys[s]);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }  // end of save()
+
+}  // end of Trail class
@@ -0,0 +1,137 @@
+
+// Watcher.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A "watch" request which is waiting for a player to change.
+
+   The request is parked in an asynchronous context, so it doesn't
+   hold a container thread while it waits. The game answers it when
+   a player moves or dies, or when the game ends; otherwise it is
+   answered when its timeout expires.
+
+   The game's timer answers the watcher if nothing changes in time.
+   The listener methods are called by the container (through the
+   AsyncForwarder added by the servlet), if the client goes away or
+   the request's own timeout expires first.
+
+   A watcher can only be answered once, so the game and the timeouts
+   must all claim() the watcher before replying.
+*/
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+public class Watcher implements AsyncListener
+{
+  private final Game game;
+  private final AsyncContext context;
+  private final Player player;
+  private final long since;    // the version the watcher already knows about
+  private final boolean isBinary;
+
+  private final AtomicBoolean isClaimed = new AtomicBoolean(false);
+  private volatile Future<?> timeoutTask = null;   // the timer's answer if nothing changes
+
+
+
+  public Watcher(Game g, AsyncContext ac, Player p, long sinceVersion, boolean binary)
+  {
+    game = g;
+    context = ac;
+    player = p;
+    since = sinceVersion;
+    isBinary = binary;
+  }  // end of Watcher()
+
+
+  public Player getPlayer()
+  {  return player;  }
+
+  public long getSince()
+  {  return since;  }
+
+
+  public boolean claim()
+  // return true if this is the first claim on the watcher
+  {  return isClaimed.compareAndSet(false, true);  }
+
+
+  public void setTimeoutTask(Future<?> task)
+  {  timeoutTask = task;  }
+
+
+
+  public void answer(final boolean hasChanged)
+  /* reply to the watcher using a container thread, and then
+     finish the request. The watcher must have been claimed. */
+  {
+    Future<?> task = timeoutTask;
+    if (task != null)
+      task.cancel(false);    // the timer no longer needs to answer it
+
+    try {
+      context.start( new Runnable() {
+        public void run()
+        {
+          try {
+            Reply reply = new Reply((HttpServletResponse) context.getResponse(), isBinary);
+            game.answerWatcher(Watcher.this, reply, hasChanged);
+          }
+          catch (IOException e)
+          {  System.out.println("Could not answer watcher: " + e);  }
+          finally {
+            context.complete();
+          }
+        }
+      });
+    }
+    catch (IllegalStateException e)   // the request has already finished
+    {  System.out.println("Watcher already finished: " + e);  }
+  }  // end of answer()
+
+
+
+  // ---------------------- AsyncListener methods -------------------------
+
+
+  public void onTimeout(AsyncEvent e) throws IOException
+  // the request's timeout expired before the timer's, so reply with no player details
+  {
+    game.removeWatcher(this);
+    if (claim()) {
+      Future<?> task = timeoutTask;
+      if (task != null)
+        task.cancel(false);
+      try {
+        Reply reply = new Reply((HttpServletResponse) context.getResponse(), isBinary);
+        game.answerWatcher(this, reply, false);
+      }
+      finally {
+        context.complete();
+      }
+    }
+  }  // end of onTimeout()
+
+
+  public void onError(AsyncEvent e) throws IOException
+  {
+    game.removeWatcher(this);
+    if (claim()) {   // so the game won't try to answer it
+      Future<?> task = timeoutTask;
+      if (task != null)
+        task.cancel(false);
+    }
+  }
+
+
+  public void onComplete(AsyncEvent e) throws IOException {}
+
+  public void onStartAsync(AsyncEvent e) throws IOException {}
+
+}  // end of Watcher class
@@ -0,0 +1,70 @@
+
+// BannerTask.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* Draw the banners for a range of IDs, and encode each one as PNG
+   bytes, using a fork-join pool.
+
+   A range bigger than THRESHOLD IDs is split in half, and the halves
+   are drawn in parallel. Each banner is stored in its own slot of the
+   pngs[] array, so the tasks never share anything they write to.
+   The banners are drawn by a BannerTemplate, which is only read, so
+   one copy is shared by every task.
+*/
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.awt.image.*;
+import javax.imageio.ImageIO;
+
+
+@SuppressWarnings("serial")    // a task is never serialized
+public class BannerTask extends RecursiveAction
+{
+  private static final int THRESHOLD = 8;   // IDs drawn without splitting further
+
+  private final String[] ids;
+  private final byte[][] pngs;     // the PNG bytes for each ID; null if it failed
+  private final BannerTemplate bannerTemplate;
+  private final int lo, hi;    // the IDs from lo up to (but not including) hi
+
+
+
+  public BannerTask(String[] ids, byte[][] pngs, BannerTemplate bt, int lo, int hi)
+  {
+    this.ids = ids;
+    this.pngs = pngs;
+    bannerTemplate = bt;
+    this.lo = lo;
+    this.hi = hi;
+  }  // end of BannerTask()
+
+
+
+  protected void compute()
+  {
+    if (hi - lo <= THRESHOLD) {
+      for (int i = lo; i < hi; i++)
+        pngs[i] = encode( bannerTemplate.draw(ids[i]) );
+    }
+    else {
+      int mid = (lo + hi) >>> 1;
+      invokeAll( new BannerTask(ids, pngs, bannerTemplate, lo, mid),
+                 new BannerTask(ids, pngs, bannerTemplate, mid, hi) );
+    }
+  }  // end of compute()
+
+
+
+  private byte[] encode(BufferedImage image)
+  {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ImageIO.write(image, "png", bos);
+      return bos.toByteArray();
+    }
+    catch (IOException e)
+    {  return null;  }
+  }  // end of encode()
+
+}  // end of BannerTask class
@@ -0,0 +1,223 @@
+
+// BannerTemplate.java
+// Andrew Davison, November 2009, ad@fivedots.coe.psu.ac.th
+
+/* A faster way of drawing the ID banners made by IDCreator.drawBanner(),
+   when many banners are needed.
+
+   Only the letters change from one banner to the next, so the yellow
+   background, black border, and logo are drawn once into a template
+   image. Each letter that can be in an ID is also drawn once, and
+   its anti-aliased pixels are stored as an array of coverage values
+   (how much of each pixel the letter covers). A banner is then a copy
+   of the template's pixels, with each letter's coverage blended into
+   the copy at the position drawString() would use.
+
+   The blending uses the same rounding as Java 2D, so the banner is
+   the same as the one drawn by drawBanner(). The only exception is
+   when two neighbouring letters overlap (e.g. "YY"): drawString()
+   fills the letters' outlines together, so the overlap can't be made
+   from two separate letters. Those IDs are drawn with drawString()
+   onto a copy of the template instead.
+
+   The template and letters are never changed after they are made,
+   so one BannerTemplate can be used by many threads at once.
+*/
+
+import java.awt.*;
+import java.awt.image.*;
+
+
+public class BannerTemplate
+{
+  private static final byte[][] MUL8 = makeMul8();    // MUL8[a][b] == a*b/255, rounded
+
+  private final int[] templatePixels;   // background, border, and logo
+
+  private final String letters;     // the letters which are stored
+  private final int[] advances;     // how far each letter moves the pen
+  private final byte[][] coverages;    // each letter's pixels, in rows
+  private final int[] offXs, offYs;    // top-left of the pixels, from the pen on the baseline
+  private final int[] widths, heights;
+  private final boolean[][] overlaps;  // does letter i overlap a following letter j?
+
+  private final FontMetrics metrics;
+  private final int textY;    // top of the text in the banner
+  private final int ascent;
+
+
+
+  public BannerTemplate(BufferedImage logoIm, String lets)
+  /* lets are the letters which are stored; any other letter in an
+     ID is drawn with drawString() */
+  {
+    BufferedImage template = IDCreator.drawBanner("", logoIm);
+    templatePixels = template.getRGB(0, 0, IDCreator.IM_WIDTH, IDCreator.IM_HEIGHT,
+                                     null, 0, IDCreator.IM_WIDTH);
+
+    // measure the font with the same settings as the banner
+    Graphics2D g2d = template.createGraphics();
+    setHints(g2d);
+    metrics = g2d.getFontMetrics(IDCreator.ID_FONT);
+    g2d.dispose();
+    ascent = metrics.getAscent();
+    textY = (IDCreator.IM_HEIGHT - metrics.getHeight())/2;
+
+    letters = lets;
+    int n = lets.length();
+    advances = new int[n];
+    coverages = new byte[n][];
+    offXs = new int[n];  offYs = new int[n];
+    widths = new int[n];  heights = new int[n];
+    for (int i=0; i < n; i++)
+      storeLetter(i, lets.substring(i, i+1));
+
+    overlaps = new boolean[n][n];
+    for (int i=0; i < n; i++)
+      for (int j=0; j < n; j++)     // compare i's right edge with j's left edge
+        overlaps[i][j] = (widths[i] > 0) && (widths[j] > 0) &&
+                         (offXs[i] + widths[i] > advances[i] + offXs[j]);
+  }  // end of BannerTemplate()
+
+
+
+  private void storeLetter(int i, String letter)
+  /* draw the letter in black onto a transparent image, so each pixel's
+     alpha is how much the letter covers it; store the smallest
+     rectangle holding all the covered pixels */
+  {
+    advances[i] = metrics.stringWidth(letter);
+    int pad = IDCreator.ID_FONT.getSize();    // room for pixels beyond the advance
+    int imWidth = advances[i] + 2*pad;
+    int imHeight = metrics.getHeight() + 2*pad;
+
+    BufferedImage im = new BufferedImage(imWidth, imHeight, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2d = im.createGraphics();
+    setHints(g2d);
+    g2d.setFont(IDCreator.ID_FONT);
+    g2d.setColor(Color.BLACK);
+    g2d.drawString(letter, pad, pad + ascent);
+    g2d.dispose();
+    int[] pixels = im.getRGB(0, 0, imWidth, imHeight, null, 0, imWidth);
+
+    // find the covered rectangle
+    int x0 = imWidth, y0 = imHeight, x1 = -1, y1 = -1;
+    for (int y=0; y < imHeight; y++)
+      for (int x=0; x < imWidth; x++)
+        if ((pixels[y*imWidth + x] >>> 24) != 0) {
+          x0 = Math.min(x0, x);  x1 = Math.max(x1, x);
+          y0 = Math.min(y0, y);  y1 = Math.max(y1, y);
+        }
+    if (x1 == -1) {   // nothing covered, e.g. a space
+      coverages[i] = new byte[0];
+      return;
+    }
+
+    widths[i] = x1 - x0 + 1;
+    heights[i] = y1 - y0 + 1;
+    offXs[i] = x0 - pad;
+    offYs[i] = y0 - (pad + ascent);
+    coverages[i] = new byte[widths[i]*heights[i]];
+    for (int y=0; y < heights[i]; y++)
+      for (int x=0; x < widths[i]; x++)
+        coverages[i][y*widths[i] + x] = (byte)(pixels[(y0+y)*imWidth + x0+x] >>> 24);
+  }  // end of storeLetter()
+
+
+
+  private static void setHints(Graphics2D g2d)
+  {  g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                          RenderingHints.VALUE_TEXT_ANTIALIAS_ON);  }
+
+
+
+  private static byte[][] makeMul8()
+  // the same multiplication table as Java 2D's blending loops
+  {
+    byte[][] table = new byte[256][256];
+    for (int i=1; i < 256; i++) {
+      int inc = i*0x10101;
+      int val = inc + (1 << 23);
+      for (int j=1; j < 256; j++) {
+        table[i][j] = (byte)(val >>> 24);
+        val += inc;
+      }
+    }
+    return table;
+  }  // end of makeMul8()
+
+
+
+  public BufferedImage draw(String idStr)
+  // the same image as IDCreator.drawBanner(idStr, logoIm)
+  {
+    BufferedImage image = new BufferedImage(IDCreator.IM_WIDTH, IDCreator.IM_HEIGHT,
+                                            BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    System.arraycopy(templatePixels, 0, pixels, 0, pixels.length);   // the template
+
+    int width = metrics.stringWidth(idStr);
+    if (width > IDCreator.IM_WIDTH)
+      System.out.println("Width of ID is too large; some text lost");
+    int x = (IDCreator.IM_WIDTH - width)/2;
+
+    int[] idxs = new int[idStr.length()];
+    for (int i=0; i < idxs.length; i++) {
+      idxs[i] = letters.indexOf( idStr.charAt(i) );
+      if ((idxs[i] == -1) || ((i > 0) && overlaps[idxs[i-1]][idxs[i]])) {
+        drawText(image, idStr, x);
+        return image;
+      }
+    }
+
+    for (int i=0; i < idxs.length; i++) {
+      blendLetter(pixels, idxs[i], x, textY + ascent);
+      x += advances[ idxs[i] ];
+    }
+    return image;
+  }  // end of draw()
+
+
+
+  private void blendLetter(int[] pixels, int i, int penX, int penY)
+  /* blend black into the banner's pixels, using the letter's coverage;
+     the banner is opaque, so each color becomes (255-coverage)*color/255 */
+  {
+    byte[] cov = coverages[i];
+    int w = widths[i];
+    int left = penX + offXs[i];
+    int top = penY + offYs[i];
+    for (int y=0; y < heights[i]; y++) {
+      int py = top + y;
+      if ((py < 0) || (py >= IDCreator.IM_HEIGHT))
+        continue;
+      for (int x=0; x < w; x++) {
+        int px = left + x;
+        int a = cov[y*w + x] & 0xFF;
+        if ((a == 0) || (px < 0) || (px >= IDCreator.IM_WIDTH))
+          continue;
+        int pos = py*IDCreator.IM_WIDTH + px;
+        byte[] mul = MUL8[255 - a];
+        int rgb = pixels[pos];
+        pixels[pos] = (rgb & 0xFF000000) |
+                      ((mul[(rgb >> 16) & 0xFF] & 0xFF) << 16) |
+                      ((mul[(rgb >> 8) & 0xFF] & 0xFF) << 8) |
+                       (mul[rgb & 0xFF] & 0xFF);
+      }
+    }
+  }  // end of blendLetter()
+
+
+
+  private void drawText(BufferedImage image, String idStr, int x)
+  // draw the ID the slow way, as IDCreator.drawID() does
+  {
+    Graphics2D g2d = image.createGraphics();
+    setHints(g2d);
+    g2d.setFont(IDCreator.ID_FONT);
+    g2d.setColor(Color.BLACK);
+    g2d.drawString(idStr, x, textY + ascent);
+    g2d.dispose();
+  }  // end of drawText()
+
+}  // end of BannerTemplate class
@@ -13,10 +13,25 @@
       java IDCreator [ -f ]
 
    The image is saved to the ID_FNM file.
+
+   Batch usage:
+      java IDCreator -n <number> [ -foxes <number> ]
+                     [ -out <dir or zip file> ] [ -map <lat> <long> <zoom> ]
+
+   Generates n different IDs, of which the first 'foxes' are fox IDs
+   (the default is 1). Each banner is saved as <ID>.png in the output
+   directory (BATCH_DIR by default), or in a zip file if the -out name
+   ends with ".zip". A players.txt file for FoxHoundsServlet is saved
+   with the banners; its map lines come from -map, or must be edited
+   by hand. The logo is loaded once, and the banners are drawn in
+   parallel by BannerTasks, using a BannerTemplate which only draws
+   the background, logo, and letters once.
 */
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import java.awt.*;
 import java.awt.image.*;
 import javax.imageio.ImageIO;
@@ -27,25 +42,42 @@ public class IDCreator
   private static final int ID_LEN = 5;   
             // length of ID, excluding F or H at the beginning
 
-  private static final int IM_HEIGHT = 300;   // size of resulting image
-  private static final int IM_WIDTH = 800;
+  public static final int IM_HEIGHT = 300;   // size of resulting image
+  public static final int IM_WIDTH = 800;
+
+  public static final Font ID_FONT = new Font("SansSerif", Font.BOLD, 184);  //196
 
   private static final String ID_FNM = "foxHoundsID.png";   // where the PNG is saved
   private static final String LOGO_FNM = "fox.png";     // Fox and Hounds logo
 
+  private static final String BATCH_DIR = "ids";    // where a batch is saved by default
+  private static final String PLAYERS_FNM = "players.txt";
+
+  private static final String LETTERS = "ABCDEGJKLMNPQRSTUVWXYZ0123456789";
+                                           // used in IDs; no F, H, I, O
+
 
 
   public static void main(String[] args)
   {
+    if ((args.length > 0) && args[0].equals("-n")) {
+      makeBatch(args);
+      return;
+    }
+
     boolean isFox = false;    // default ID is for hound
     if (args.length == 1) {
       if (args[0].toLowerCase().startsWith("-f"))
         isFox = true;
     }
 
-    String idStr = generateID(isFox);
+    if (isFox)
+      System.out.println("Generating a Fox ID");
+    else
+      System.out.println("Generating a Hound ID");
+    String idStr = generateID(isFox, new Random());
     System.out.println("ID: " + idStr);
-    BufferedImage image = drawBanner(idStr);
+    BufferedImage image = drawBanner(idStr, loadLogo());
 
     try {   // save the image to a file
       ImageIO.write(image, "png", new File(ID_FNM));
@@ -58,29 +90,161 @@ public class IDCreator
 
 
 
-  private static String generateID(boolean isFox)
+  private static String generateID(boolean isFox, Random rand)
   // generate a six-letter string, starting with "F" or "H"
   {
-    if (isFox)
-      System.out.println("Generating a Fox ID");
-    else
-      System.out.println("Generating a Hound ID");
-
-    String lets = "ABCDEGJKLMNPQRSTUVWXYZ0123456789";   // no F, H, I, O
-    Random rand = new Random();
-
     StringBuffer sb = (isFox) ? new StringBuffer("F") : new StringBuffer("H");
     for (int i=0; i < ID_LEN; i++)
-      sb.append( lets.charAt( rand.nextInt(lets.length())) );
+      sb.append( LETTERS.charAt( rand.nextInt(LETTERS.length())) );
 
     return sb.toString();
   }  // end of generateID()
 
 
 
-  private static BufferedImage drawBanner(String idStr)
+  // ---------------------------- batches ---------------------------------
+
+
+  private static void makeBatch(String[] args)
+  // generate a batch of IDs, and save their banners and players file
+  {
+    int numIDs = 0;
+    int numFoxes = 1;
+    String outNm = BATCH_DIR;
+    String[] mapLines = { "0", "0", "18" };   // latitude, longitude, zoom
+    boolean hasMap = false;
+    try {
+      for (int i=0; i < args.length; i++) {
+        if (args[i].equals("-n"))
+          numIDs = Integer.parseInt(args[++i]);
+        else if (args[i].equals("-foxes"))
+          numFoxes = Integer.parseInt(args[++i]);
+        else if (args[i].equals("-out"))
+          outNm = args[++i];
+        else if (args[i].equals("-map")) {
+          for (int j=0; j < mapLines.length; j++)
+            mapLines[j] = args[++i];
+          hasMap = true;
+        }
+        else
+          System.out.println("Ignoring " + args[i]);
+      }
+    }
+    catch (Exception e)    // a missing or badly written number
+    {  System.out.println("Usage: java IDCreator -n <number> [ -foxes <number> ] " +
+                          "[ -out <dir or zip file> ] [ -map <lat> <long> <zoom> ]");
+       return;
+    }
+    if ((numIDs <= 0) || (numFoxes < 0) || (numFoxes > numIDs)) {
+      System.out.println("Need at least one ID, and no more foxes than IDs");
+      return;
+    }
+
+    long startTime = System.currentTimeMillis();
+    String[] ids = generateIDs(numIDs, numFoxes);
+    byte[][] pngs = new byte[numIDs][];
+    BannerTemplate bt = new BannerTemplate(loadLogo(), "FH" + LETTERS);
+                                        // shared by every task
+    ForkJoinPool pool = new ForkJoinPool();
+    pool.invoke( new BannerTask(ids, pngs, bt, 0, numIDs) );
+    pool.shutdown();
+
+    try {
+      saveBatch(ids, pngs, mapLines, outNm);
+      System.out.println("Saved " + numIDs + " IDs (" + numFoxes + " foxes) to " + outNm +
+                         " in " + (System.currentTimeMillis() - startTime) + " ms");
+      if (!hasMap)
+        System.out.println("The map lines in " + PLAYERS_FNM + " must be edited");
+    }
+    catch (IOException e)
+    {  System.out.println("Could not save IDs to " + outNm + ": " + e);  }
+  }  // end of makeBatch()
+
+
+
+  private static String[] generateIDs(int numIDs, int numFoxes)
+  // generate numIDs different IDs, with the fox IDs first
+  {
+    Random rand = new Random();
+    LinkedHashSet<String> ids = new LinkedHashSet<String>();
+    while (ids.size() < numFoxes)
+      ids.add( generateID(true, rand) );     // a repeated ID isn't added
+    while (ids.size() < numIDs)
+      ids.add( generateID(false, rand) );
+    return ids.toArray( new String[numIDs] );
+  }  // end of generateIDs()
+
+
+
+  private static void saveBatch(String[] ids, byte[][] pngs, String[] mapLines,
+                                String outNm) throws IOException
+  /* save each banner as <ID>.png, and the players file, in the outNm
+     directory, or in a zip file if outNm ends with ".zip" */
+  {
+    StringBuffer sb = new StringBuffer();
+    for (String line : mapLines)
+      sb.append(line + "\n");
+    for (String id : ids)
+      sb.append(id + "\n");
+    byte[] playersBytes = sb.toString().getBytes("US-ASCII");
+
+    if (outNm.toLowerCase().endsWith(".zip")) {
+      ZipOutputStream zos = new ZipOutputStream( new BufferedOutputStream(
+                                              new FileOutputStream(outNm) ));
+      try {
+        for (int i=0; i < ids.length; i++) {
+          if (pngs[i] == null)
+            System.out.println("Could not draw ID " + ids[i]);
+          else {
+            zos.putNextEntry( new ZipEntry(ids[i] + ".png") );
+            zos.write(pngs[i]);
+            zos.closeEntry();
+          }
+        }
+        zos.putNextEntry( new ZipEntry(PLAYERS_FNM) );
+        zos.write(playersBytes);
+        zos.closeEntry();
+      }
+      finally {
+        zos.close();
+      }
+    }
+    else {
+      File dir = new File(outNm);
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Could not make directory " + dir);
+      for (int i=0; i < ids.length; i++) {
+        if (pngs[i] == null)
+          System.out.println("Could not draw ID " + ids[i]);
+        else
+          writeFile(new File(dir, ids[i] + ".png"), pngs[i]);
+      }
+      writeFile(new File(dir, PLAYERS_FNM), playersBytes);
+    }
+  }  // end of saveBatch()
+
+
+
+  private static void writeFile(File f, byte[] bytes) throws IOException
+  {
+    FileOutputStream fos = new FileOutputStream(f);
+    try {
+      fos.write(bytes);
+    }
+    finally {
+      fos.close();
+    }
+  }  // end of writeFile()
+
+
+
+  // ---------------------------- drawing ---------------------------------
+
+
+  public static BufferedImage drawBanner(String idStr, BufferedImage logoIm)
   /* the resulting image contains the ID, a yellow background,
-     black border, and the Fox and Hounds logo  */
+     black border, and the Fox and Hounds logo (if logoIm isn't null).
+     logoIm is only read, so it can be shared by several threads  */
   {
     BufferedImage image = new BufferedImage(IM_WIDTH, IM_HEIGHT, BufferedImage.TYPE_INT_ARGB);
     Graphics2D g2d = image.createGraphics();
@@ -94,23 +258,27 @@ public class IDCreator
     g2d.setColor(Color.BLACK);
     g2d.drawRect(0, 0, IM_WIDTH-1, IM_HEIGHT-1);   // black border
 
-    drawLogo(g2d);
+    if (logoIm != null)
+      g2d.drawImage(logoIm, (IM_WIDTH-logoIm.getWidth())/2, 0, null);  // horizontally centered 
     drawID(g2d, idStr);
+    g2d.dispose();
 
     return image;
   }  // end of drawBanner()
 
 
 
-  private static void drawLogo(Graphics2D g2d)
+  private static BufferedImage loadLogo()
+  // return null if the logo can't be loaded
   {
     try{
-      BufferedImage logoIm = ImageIO.read(new File(LOGO_FNM));
-      g2d.drawImage(logoIm, (IM_WIDTH-logoIm.getWidth())/2, 0, null);  // horizontally centered 
+      return ImageIO.read(new File(LOGO_FNM));
     }
     catch(IOException e)
-    {  System.out.println("Could not load logo from " + LOGO_FNM); }
-  }  // end of drawLogo()
+    {  System.out.println("Could not load logo from " + LOGO_FNM); 
+       return null;
+    }
+  }  // end of loadLogo()
 
 
 
@@ -118,10 +286,9 @@ public class IDCreator
   private static void drawID(Graphics2D g2d, String idStr)
   // draw the ID in very large letters
   {
-    Font font = new Font("SansSerif", Font.BOLD, 184);  //196
-    g2d.setFont(font);
+    g2d.setFont(ID_FONT);
 
-    FontMetrics metrics = g2d.getFontMetrics(font);
+    FontMetrics metrics = g2d.getFontMetrics(ID_FONT);
     int height = metrics.getHeight();
     int ascent = metrics.getAscent();    // where is font baseline
     int width = metrics.stringWidth(idStr);